@@ -0,0 +1,60 @@
+package spolks.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the per-chunk CRC32C that binary frames carry, with CRC32 for reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({"4096", "65536", "1048576"})
+    public int chunkSize;
+
+    private final CRC32C crc32c = new CRC32C();
+    private final CRC32 crc32 = new CRC32();
+    private ByteBuffer chunk;
+
+    @Setup
+    public void setUp() {
+        byte[] random = new byte[chunkSize];
+        new Random(42).nextBytes(random);
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+        chunk.put(random);
+        chunk.flip();
+    }
+
+    @Benchmark
+    public long crc32c() {
+        crc32c.reset();
+        crc32c.update(chunk.duplicate());
+        return crc32c.getValue();
+    }
+
+    @Benchmark
+    public long crc32() {
+        crc32.reset();
+        crc32.update(chunk.duplicate());
+        return crc32.getValue();
+    }
+}
@@ -0,0 +1,56 @@
+package spolks.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round-trip latency of the small control commands over one connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandLatencyBenchmark {
+
+    @Param({"BLOCKING", "NON_BLOCKING", "VIRTUAL_THREADS"})
+    public String mode;
+
+    private LoopbackServer server;
+    private TextClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = LoopbackServer.start(mode);
+        client = new TextClient(64 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public String echo() throws Exception {
+        return client.command("echo ping");
+    }
+
+    @Benchmark
+    public String time() throws Exception {
+        return client.command("time");
+    }
+}
@@ -0,0 +1,81 @@
+package spolks.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scaling with the number of connected clients: every operation is one echo round trip on each connection,
+ * issued concurrently. The blocking mode serves a fixed two sessions at a time and is left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrencyBenchmark {
+
+    @Param({"NON_BLOCKING", "VIRTUAL_THREADS"})
+    public String mode;
+
+    @Param({"1", "16", "256"})
+    public int clients;
+
+    private LoopbackServer server;
+    private ExecutorService executor;
+    private final List<Callable<String>> rounds = new ArrayList<>();
+    private final List<TextClient> connections = new ArrayList<>();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Requests {
+        public long requests;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = LoopbackServer.start(mode);
+        executor = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            final TextClient client = new TextClient(4096);
+            connections.add(client);
+            rounds.add(() -> client.command("echo ping"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        for (TextClient client : connections) client.close();
+        connections.clear();
+        rounds.clear();
+        server.stop();
+    }
+
+    @Benchmark
+    public int echoRound(Requests counter) throws Exception {
+        int replies = 0;
+        for (Future<String> reply : executor.invokeAll(rounds)) replies += reply.get().length();
+        counter.requests += clients;
+        return replies;
+    }
+}
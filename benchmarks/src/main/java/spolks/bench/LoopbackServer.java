@@ -0,0 +1,85 @@
+package spolks.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Runs the application's {@code Server} on loopback inside the benchmark JVM.
+ * The server and its {@code Config} live in the unnamed package, so they are reached reflectively.
+ */
+final class LoopbackServer {
+
+    static final String HOST = "127.0.0.1";
+    static final int PORT = 1337;
+
+    private static final long START_TIMEOUT_MILLIS = 10000;
+    private static final String RESUME_JOURNAL = "server.resume";
+
+    private final Object server;
+    private final Thread listener;
+
+    private LoopbackServer(Object server, Thread listener) {
+        this.server = server;
+        this.listener = listener;
+    }
+
+    static LoopbackServer start(String mode) throws Exception {
+        return start(mode, Collections.emptyMap());
+    }
+
+    static LoopbackServer start(String mode, Map<String, String> options) throws Exception {
+        new File(RESUME_JOURNAL).delete();
+        Class<?> serverClass = Class.forName("Server");
+        Class<?> modeClass = Class.forName("Server$Mode");
+        Object modeValue = null;
+        for (Object constant : modeClass.getEnumConstants())
+            if (((Enum<?>) constant).name().equals(mode)) modeValue = constant;
+        if (modeValue == null) throw new IllegalArgumentException("Unknown server mode " + mode);
+        Class<?> configClass = Class.forName("Config");
+        Constructor<?> newConfig = configClass.getDeclaredConstructor();
+        newConfig.setAccessible(true);
+        Object config = newConfig.newInstance();
+        Method set = configClass.getDeclaredMethod("set", String.class, String.class);
+        set.setAccessible(true);
+        for (Map.Entry<String, String> option : options.entrySet())
+            set.invoke(config, option.getKey(), option.getValue());
+        final Object server = serverClass.getConstructor(modeClass, configClass).newInstance(modeValue, config);
+        final Method listen = serverClass.getMethod("listen");
+        Thread listener = new Thread(() -> {
+            try {
+                listen.invoke(server);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }, "loopback-server");
+        listener.setDaemon(true);
+        listener.start();
+        awaitPort();
+        return new LoopbackServer(server, listener);
+    }
+
+    void stop() throws Exception {
+        server.getClass().getMethod("shutdown").invoke(server);
+        listener.join(START_TIMEOUT_MILLIS);
+        new File(RESUME_JOURNAL).delete();
+    }
+
+    private static void awaitPort() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(HOST, PORT), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package spolks.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal text-protocol client that keeps payload bytes in one reusable direct buffer,
+ * so the allocation profile of a benchmark reflects the server rather than the client.
+ */
+final class TextClient implements Closeable {
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    TextClient(int bufferSize) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(LoopbackServer.HOST, LoopbackServer.PORT));
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.flip();
+        String greeting = readLine();
+        if (!greeting.startsWith("Connected")) throw new IOException(greeting);
+    }
+
+    String command(String command) throws IOException {
+        writeLine(command);
+        return readLine();
+    }
+
+    long upload(String name, ByteBuffer data, long size) throws IOException {
+        String offset = command("upload " + name + "|" + size);
+        if (!offset.equals("0")) throw new IOException("Upload rejected: " + offset + " " + readLine());
+        long sent = 0;
+        while (sent < size) {
+            ByteBuffer chunk = data.duplicate();
+            chunk.clear();
+            if (size - sent < chunk.capacity()) chunk.limit((int) (size - sent));
+            while (chunk.hasRemaining()) sent += channel.write(chunk);
+        }
+        String reply = readLine();
+        if (!reply.contains("successfully")) throw new IOException(reply);
+        return size;
+    }
+
+    long download(String path) throws IOException {
+        String reply = command("download " + path);
+        if (!reply.startsWith("File was found|")) throw new IOException(reply);
+        long size = Long.parseLong(reply.substring(reply.indexOf('|') + 1).trim());
+        writeLine("0");
+        long received = Math.min(buffer.remaining(), size);
+        buffer.position(buffer.position() + (int) received);
+        while (received < size) {
+            buffer.clear();
+            if (size - received < buffer.capacity()) buffer.limit((int) (size - received));
+            int count = channel.read(buffer);
+            if (count == -1) throw new EOFException();
+            received += count;
+        }
+        buffer.clear();
+        buffer.flip();
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeLine("close");
+        } catch (IOException ignored) {
+        }
+        channel.close();
+    }
+
+    private void writeLine(String text) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((text + "\r\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) channel.write(bytes);
+    }
+
+    private String readLine() throws IOException {
+        line.reset();
+        while (true) {
+            while (buffer.hasRemaining()) {
+                byte next = buffer.get();
+                if (next == '\n') {
+                    String text = line.toString(StandardCharsets.UTF_8.name());
+                    return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+                }
+                line.write(next);
+            }
+            buffer.clear();
+            int count = channel.read(buffer);
+            buffer.flip();
+            if (count == -1) throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package spolks.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-connection upload and download throughput. The {@code bytes} counter is reported in bytes per second;
+ * with {@code -prof gc}, {@code gc.alloc.rate.norm} divided by {@code fileSize} in MB gives bytes allocated per MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class TransferThroughputBenchmark {
+
+    @Param({"BLOCKING", "NON_BLOCKING", "VIRTUAL_THREADS"})
+    public String mode;
+
+    @Param({"1048576", "16777216", "67108864"})
+    public long fileSize;
+
+    @Param({"8192", "65536", "1048576"})
+    public int bufferSize;
+
+    private LoopbackServer server;
+    private TextClient client;
+    private File source;
+    private ByteBuffer payload;
+    private int uploads = 0;
+    private String uploaded;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = LoopbackServer.start(mode, Collections.singletonMap("bufferSize", String.valueOf(bufferSize)));
+        client = new TextClient(bufferSize);
+        byte[] random = new byte[bufferSize];
+        new Random(42).nextBytes(random);
+        payload = ByteBuffer.allocateDirect(bufferSize);
+        payload.put(random);
+        source = File.createTempFile("spolks-bench", ".bin");
+        source.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            for (long written = 0; written < fileSize; written += random.length)
+                file.write(random, 0, (int) Math.min(random.length, fileSize - written));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop();
+        source.delete();
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeUpload() {
+        if (uploaded == null) return;
+        new File("server " + uploaded).delete();
+        uploaded = null;
+    }
+
+    @Benchmark
+    public long upload(Bytes counter) throws IOException {
+        uploaded = "bench-" + uploads++ + ".bin";
+        long size = client.upload(uploaded, payload, fileSize);
+        counter.bytes += size;
+        return size;
+    }
+
+    @Benchmark
+    public long download(Bytes counter) throws IOException {
+        long size = client.download(source.getAbsolutePath());
+        counter.bytes += size;
+        return size;
+    }
+}
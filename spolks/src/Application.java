@@ -1,29 +1,81 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Application {
 
     public static void main(String[] args) {
+        Config config;
+        try {
+            config = Config.parse(args);
+            if (!config.getArguments().isEmpty()) {
+                runHeadless(config);
+                return;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            usage();
+            return;
+        }
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         loop:
         while (true) {
             System.out.println("1. Client");
             System.out.println("2. Server");
-            System.out.println("3. Exit");
+            System.out.println("3. Server (non-blocking)");
+            System.out.println("4. Server (virtual threads)");
+            System.out.println("5. Exit");
             try {
                 switch (Integer.parseInt(reader.readLine())) {
                     case 1:
-                        new Client().start();
+                        new Client(config).start();
                         break;
                     case 2:
-                        new Server().listen();
+                        new Server(Server.Mode.BLOCKING, config).listen();
                         break;
                     case 3:
+                        new Server(Server.Mode.NON_BLOCKING, config).listen();
+                        break;
+                    case 4:
+                        new Server(Server.Mode.VIRTUAL_THREADS, config).listen();
+                        break;
+                    case 5:
                         break loop;
                 }
-            } catch (IOException | NumberFormatException ignored) {
+            } catch (IOException | IllegalArgumentException ignored) {
             }
         }
     }
+
+    private static void runHeadless(Config config) throws IOException {
+        List<String> arguments = config.getArguments();
+        switch (arguments.get(0)) {
+            case "server":
+                String mode = config.get("mode", "blocking").toUpperCase().replace('-', '_');
+                new Server(Server.Mode.valueOf(mode), config).listen();
+                break;
+            case "client":
+                List<String> commands = new ArrayList<>(arguments.subList(1, arguments.size()));
+                String script = config.get("script", "");
+                if (!script.isEmpty()) commands.addAll(Files.readAllLines(Paths.get(script)));
+                new Client(config).run(commands);
+                break;
+            case "load":
+                new LoadGenerator(config).run();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + arguments.get(0));
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: server [--mode=blocking|non-blocking|virtual-threads] [--option=value ...]");
+        System.out.println("       client [--host=address] [--binary] [--autoTune] [--script=file] [command ...]");
+        System.out.println("       load [--host=address] [--connections=n] [--duration=seconds] [--mix=echo:40,upload:25,...]");
+        System.out.println("Options are also read from " + Config.DEFAULT_FILE + " or --config=file");
+    }
 }
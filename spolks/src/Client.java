@@ -1,87 +1,282 @@
-import javafx.util.Pair;
-
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 public class Client {
 
     private static final int BUFFER_SIZE = 64 * 1024;
     private static final int SERVER_PORT = 1337;
+    private static final int WRITE_QUEUE_DEPTH = 8;
+    private static final int PIPELINE_DEPTH = 64;
+    private static final int PIPELINE_BYTES = 16 * 1024;
+    private static final String RESUME_JOURNAL = "client.resume";
+    private static final int TUNE_ROUND_TRIPS = 5;
+    private static final long TUNE_PROBE_SIZE = 1024 * 1024;
+    private static final long TUNE_MAX_PROBE_SIZE = 256L * 1024 * 1024;
+    private static final long TUNE_PROBE_NANOS = 200000000L;
+    private static final int MAX_SOCKET_BUFFER_SIZE = 64 * 1024 * 1024;
 
+    private final Config config;
+    private final int bufferSize;
     private Socket connection;
-    private InputStream input;
-    private OutputStream output;
+    private FrameChannel frames;
     private BufferedReader user = new BufferedReader(new InputStreamReader(System.in));
-    private List<Pair<File, String>> underDownloadedFiles = new ArrayList<>();
+    private boolean mapped = false;
+    private ResumeIndex resumeIndex = ResumeIndex.open(new File(RESUME_JOURNAL));
+
+    public Client() {
+        this(new Config());
+    }
+
+    public Client(Config config) {
+        this.config = config;
+        bufferSize = config.getInt("bufferSize", BUFFER_SIZE);
+        if (bufferSize < 1024 || bufferSize > FrameChannel.MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("Bad buffer size " + bufferSize);
+    }
+
+    private interface RangeTask {
+        void transfer(FrameChannel frames, long start, long end) throws IOException;
+    }
+
+    private interface Reply {
+        void read() throws IOException;
+    }
 
     public void start() {
         while (true) {
             try {
-                System.out.println("To connect type 'c', to quit type 'q'");
+                System.out.println("To connect type 'c' ('b' for the binary protocol), to quit type 'q'");
                 String line;
                 line = user.readLine();
                 if (line.equals("")) continue;
-                if (line.charAt(0) == 'c') setupConnection();
+                if (line.charAt(0) == 'c') setupConnection(false);
+                if (line.charAt(0) == 'b') setupConnection(true);
                 if (line.charAt(0) == 'q') break;
             } catch (IOException | NumberFormatException ignored) {
             }
         }
     }
 
-    private void setupConnection() throws IOException {
+    public void run(List<String> commands) {
+        user = new BufferedReader(new StringReader(String.join("\n", commands)));
+        connect(config.get("host", "127.0.0.1"), config.getInt("port", SERVER_PORT), config.getBoolean("binary", false));
+    }
+
+    private void setupConnection(boolean binary) throws IOException {
         System.out.println("Server IP?");
         String ip = user.readLine();
-        connect(ip, SERVER_PORT);
+        connect(ip, config.getInt("port", SERVER_PORT), binary);
     }
 
-    private void connect(String ip, Integer port) {
+    private void connect(String ip, Integer port, boolean binary) {
         try {
-            connection = new Socket(ip, port);
-            input = connection.getInputStream();
-            output = connection.getOutputStream();
-            listen();
+            connection = TransferClient.open(new InetSocketAddress(ip, port), config);
+            frames = new FrameChannel(connection, bufferSize);
+            listen(binary);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void listen() {
+    private void listen(boolean binary) {
         try {
-            BufferedReader inputReader = new BufferedReader(new InputStreamReader(input));
+            readReply();
+            if (binary) negotiateBinary();
+            if (config.getBoolean("autoTune", false)) tune();
             while (true) {
-                String lineFromServer = inputReader.readLine();
-                if (lineFromServer == null) throw new IOException();
-                System.out.println(">>> " + lineFromServer);
                 while (true) {
                     String lineFromUser = user.readLine();
-                    if (process(lineFromUser)) break;
+                    if (lineFromUser == null) throw new EOFException();
+                    if (lineFromUser.contains(";") ? pipeline(lineFromUser) : process(lineFromUser)) break;
                 }
+                readReply();
             }
         } catch (IOException ignored) {
         }
         disconnect();
     }
 
+    private void negotiateBinary() throws IOException {
+        send(FrameChannel.BINARY_PROTOCOL);
+        String reply = frames.readMessage();
+        if (reply == null) throw new IOException();
+        System.out.println(">>> " + reply);
+        if (reply.equals(FrameChannel.BINARY_PROTOCOL)) frames.setBinary(true);
+        else System.out.println("Server does not support the binary protocol, staying on text");
+    }
+
+    private void tune() throws IOException {
+        long roundTrip = Long.MAX_VALUE;
+        for (int i = 0; i < TUNE_ROUND_TRIPS; i++) {
+            long started = System.nanoTime();
+            frames.writeMessage(FrameChannel.COMMAND, "echo tune");
+            if (frames.readMessage() == null) throw new EOFException();
+            roundTrip = Math.min(roundTrip, System.nanoTime() - started);
+        }
+        long probeSize = TUNE_PROBE_SIZE;
+        long elapsed;
+        while (true) {
+            long started = System.nanoTime();
+            frames.writeMessage(FrameChannel.COMMAND, "probe " + probeSize);
+            String reply = frames.readMessage();
+            if (reply == null) throw new EOFException();
+            if (!reply.startsWith("Probe|")) {
+                System.out.println("Server does not support probing: " + reply);
+                return;
+            }
+            skip(probeSize);
+            elapsed = System.nanoTime() - started;
+            if (elapsed >= TUNE_PROBE_NANOS || probeSize >= TUNE_MAX_PROBE_SIZE) break;
+            probeSize *= 4;
+        }
+        long bandwidth = probeSize * 1000000000L / Math.max(1, elapsed);
+        long delayProduct = (long) ((double) bandwidth * roundTrip / 1000000000L);
+        int socketBufferSize = (int) Math.min(MAX_SOCKET_BUFFER_SIZE, Math.max(2 * delayProduct, bufferSize));
+        System.out.println("Round trip " + roundTrip / 1000 + " us, bandwidth " + bandwidth * 8 / 1000000
+                + " Mbits, bandwidth-delay product " + delayProduct + " bytes");
+        if (socketBufferSize <= connection.getReceiveBufferSize()) {
+            System.out.println("Socket buffers of " + connection.getReceiveBufferSize() + " bytes are large enough");
+            return;
+        }
+        config.set("receiveBufferSize", String.valueOf(socketBufferSize));
+        config.set("sendBufferSize", String.valueOf(socketBufferSize));
+        System.out.println("Reconnecting with socket buffers of " + socketBufferSize + " bytes");
+        reconnect();
+    }
+
+    private void reconnect() throws IOException {
+        SocketAddress address = connection.getRemoteSocketAddress();
+        boolean binary = frames.isBinary();
+        boolean compressing = frames.isCompressing();
+        send("close");
+        connection.close();
+        connection = TransferClient.open(address, config);
+        frames = new FrameChannel(connection, bufferSize);
+        readReply();
+        if (binary) negotiateBinary();
+        if (compressing) negotiateCompression(FrameChannel.DEFLATE);
+        if (mapped) {
+            send("io mapped");
+            readReply();
+        }
+    }
+
+    private void negotiateCompression(String argument) throws IOException {
+        send("compress " + argument);
+        String reply = frames.readMessage();
+        if (reply == null) throw new IOException();
+        System.out.println(">>> " + reply);
+        if (reply.equalsIgnoreCase("compress " + argument))
+            frames.setCompressing(!argument.equalsIgnoreCase("off"));
+    }
+
+    private boolean pipeline(String line) throws IOException {
+        Queue<Reply> replies = new ArrayDeque<>();
+        int pending = 0;
+        for (String command : line.split(";")) {
+            command = command.trim();
+            if (command.isEmpty()) continue;
+            Reply reply = enqueue(command);
+            if (reply == null) {
+                while (!replies.isEmpty()) replies.poll().read();
+                pending = 0;
+                if (process(command)) readReply();
+                continue;
+            }
+            replies.add(reply);
+            pending += command.length();
+            if (pending >= PIPELINE_BYTES) {
+                while (!replies.isEmpty()) replies.poll().read();
+                pending = 0;
+            }
+            if (replies.size() >= PIPELINE_DEPTH) replies.poll().read();
+        }
+        while (!replies.isEmpty()) replies.poll().read();
+        return false;
+    }
+
+    private Reply enqueue(String line) throws IOException {
+        String argument = argumentOf(line);
+        switch (commandOf(line)) {
+            case "download":
+                if (argument.startsWith("-p ")) return null;
+                if (argument.startsWith("-m ")) {
+                    send("bulk " + argument.substring(3).trim());
+                    return this::receiveBulk;
+                }
+                return enqueueDownload(argument);
+            case "upload":
+            case "sync":
+            case "compress":
+            case "protocol":
+            case "tune":
+                return null;
+            case "io":
+                mapped = argument.equalsIgnoreCase("mapped");
+                send(line);
+                return this::readReply;
+            default:
+                send(line);
+                return this::readReply;
+        }
+    }
+
+    private Reply enqueueDownload(String filename) throws IOException {
+        final File file = new File("client " + filename);
+        ResumeIndex.Entry entry = resumeIndex.get(file);
+        if (file.exists() && entry == null) return () -> System.out.println("File already exists");
+        final long offset = entry == null ? 0 : entry.getConfirmedOffset();
+        send("fetch " + filename + "|" + offset + "|" + Long.MAX_VALUE);
+        return () -> {
+            String reply = frames.readMessage();
+            if (reply == null) throw new IOException();
+            System.out.println(">>> " + reply);
+            if (!reply.startsWith("File was found|")) return;
+            long fileSize = Long.parseLong(reply.substring(reply.indexOf("|") + 1));
+            receive(beginDownload(file, fileSize), Math.min(offset, fileSize));
+        };
+    }
+
     private boolean process(String line) throws IOException {
         line = line.trim();
-        int delimiterIndex = line.indexOf(" ");
-        String command = delimiterIndex == -1 ? line.toLowerCase()
-                : line.toLowerCase().substring(0, delimiterIndex).trim();
-        String argument = delimiterIndex == -1 ? "" : line.substring(delimiterIndex).trim();
+        String command = commandOf(line);
+        String argument = argumentOf(line);
         switch (command) {
             case "upload":
-                return upload(argument, line);
+                if (argument.startsWith("-p ")) return parallelUpload(argument);
+                return upload(argument);
             case "download":
-                predownload(argument, line);
+                if (argument.startsWith("-p ")) parallelDownload(argument);
+                else if (argument.startsWith("-m ")) bulkDownload(argument.substring(3).trim());
+                else predownload(argument, line);
+                return false;
+            case "io":
+                mapped = argument.equalsIgnoreCase("mapped");
+                send(line);
+                break;
+            case "compress":
+                negotiateCompression(argument);
+                return false;
+            case "tune":
+                tune();
+                return false;
+            case "sync":
+                sync(argument);
                 return false;
             default:
                 send(line);
@@ -89,59 +284,85 @@ public class Client {
         return true;
     }
 
-    private boolean upload(String filename, String command) throws IOException {
+    private static String commandOf(String line) {
+        int delimiterIndex = line.indexOf(" ");
+        return delimiterIndex == -1 ? line.toLowerCase() : line.toLowerCase().substring(0, delimiterIndex).trim();
+    }
+
+    private static String argumentOf(String line) {
+        int delimiterIndex = line.indexOf(" ");
+        return delimiterIndex == -1 ? "" : line.substring(delimiterIndex).trim();
+    }
+
+    private boolean upload(String filename) throws IOException {
         File file = new File(filename);
         if (!file.exists()) {
             System.out.println("No file");
             return false;
         }
-        send(command + "|" + file.length());
-        BufferedReader inputReader = new BufferedReader(new InputStreamReader(input));
-        RandomAccessFile fileReader = new RandomAccessFile(file, "r");
-        String lineFromServer = inputReader.readLine();
-        if (lineFromServer == null) throw new IOException();
-        long uploadedBytes = Long.parseLong(lineFromServer);
-        if (uploadedBytes == -1) return true;
-        while (true) {
-            fileReader.seek(uploadedBytes);
-            byte[] bytes = new byte[BUFFER_SIZE];
-            int countBytes = fileReader.read(bytes);
-            if (countBytes <= 0) break;
-            send(bytes, countBytes);
-            uploadedBytes += countBytes;
-            System.out.println("<<< byte[" + countBytes + "]");
+        long fileSize = file.length();
+        System.out.println("<<< upload " + filename + "|" + fileSize);
+        try {
+            System.out.println(">>> " + TransferClient.upload(frames, file, filename, mapped, bufferSize,
+                    new TransferMetrics.Progress("<<< " + filename, fileSize)));
+        } catch (TransferClient.TransferException e) {
+            System.out.println(">>> " + e.getMessage());
         }
-        return true;
+        return false;
+    }
+
+    private void sync(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            System.out.println("No file");
+            return;
+        }
+        long fileSize = file.length();
+        send("sync " + filename + "|" + fileSize);
+        String reply = frames.readMessage();
+        if (reply == null) throw new IOException();
+        if (!reply.startsWith("Signatures|")) {
+            System.out.println(">>> " + reply);
+            return;
+        }
+        String[] parts = reply.split("\\|");
+        Date startTime = new Date();
+        DeltaSync.Signatures signatures = DeltaSync.readSignatures(frames, Integer.parseInt(parts[1]),
+                Integer.parseInt(parts[2]), Long.parseLong(parts[3]));
+        frames.finishData();
+        DeltaSync.Stats stats;
+        try (FileChannel fileReader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            stats = DeltaSync.sendDelta(fileReader, fileSize, signatures, frames, bufferSize);
+        }
+        frames.endData();
+        readReply();
+        Date endTime = new Date();
+        double timeInSecs = (double)(endTime.getTime() - startTime.getTime()) / 1000D;
+        double mBits = (double)(fileSize * 8) / 1000000D;
+        double speed = timeInSecs == 0 ? Double.MAX_VALUE : mBits / timeInSecs;
+        System.out.println("Sent " + stats.getWire() + " of " + fileSize + " bytes (" + stats.getMatched()
+                + " reused). Effective speed: " + speed + " Mbits");
     }
 
     private void predownload(String filename, String command) throws IOException {
         File file = new File("client " + filename);
-        if (file.exists()) {
-            Pair<File, String> desiredFile = findUnderDownloadedFileBy(file.getName());
-            if (desiredFile != null) {
-                Long fileSize = checkFileOnRemote(command);
-                if (fileSize == null) return;
-                if (desiredFile.getValue().equals(connection.getRemoteSocketAddress().toString())) {
-                    download(file, file.length(), fileSize);
-                } else {
-                    file.delete();
-                    underDownloadedFiles.remove(desiredFile);
-                    download(file, 0, fileSize);
-                }
-            } else {
-                System.out.println("File already exists");
-            }
-        } else {
-            Long fileSize = checkFileOnRemote(command);
-            if (fileSize == null) return;
-            download(file, 0, fileSize);
+        if (file.exists() && resumeIndex.get(file) == null) {
+            System.out.println("File already exists");
+            return;
         }
+        Long fileSize = checkFileOnRemote(command);
+        if (fileSize == null) return;
+        download(beginDownload(file, fileSize));
+    }
+
+    private ResumeIndex.Entry beginDownload(File file, long fileSize) throws IOException {
+        String remote = TransferClient.ownerOf(connection.getRemoteSocketAddress());
+        return TransferClient.beginDownload(resumeIndex, file, fileSize, remote);
     }
 
     private Long checkFileOnRemote(String command) throws IOException {
         send(command);
-        BufferedReader inputReader = new BufferedReader(new InputStreamReader(input));
-        String line = inputReader.readLine();
+        String line = frames.readMessage();
         if (line == null) throw new IOException();
         System.out.println(">>> " + line);
         if (line.trim().equals("No file")) {
@@ -151,71 +372,242 @@ public class Client {
         }
     }
 
-    private void download(File file, long offset, long fileSize) throws IOException {
-        if (!file.exists()) {
-            file.createNewFile();
-            underDownloadedFiles.add(new Pair<>(file, connection.getRemoteSocketAddress().toString()));
-        }
-        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(
-                Paths.get(file.getPath()), StandardOpenOption.WRITE);
-        List<Future> operations = new ArrayList<>();
+    private void download(ResumeIndex.Entry entry) throws IOException {
+        long offset = entry.getConfirmedOffset();
+        frames.writeNumber(offset);
+        receive(entry, offset);
+    }
+
+    private void receive(final ResumeIndex.Entry entry, long offset) throws IOException {
+        long fileSize = entry.getSize();
         Date startTime = new Date();
         long initOffset = offset;
-        sendQuiet(String.valueOf(offset));
+        if (!TransferClient.receive(frames, resumeIndex, entry, offset, mapped, bufferSize,
+                new TransferMetrics.Progress(">>> " + entry.getFile().getName(), fileSize))) {
+            System.out.println("File has changed, " + entry.getDone().missing(fileSize).total()
+                    + " bytes are left. Repeat the command to resume");
+            return;
+        }
+        Date endTime = new Date();
+        double timeInSecs = (double)(endTime.getTime() - startTime.getTime()) / 1000D;
+        double mBits = (double)((fileSize - initOffset) * 8) / 1000000D;
+        double speed = timeInSecs == 0 ? Double.MAX_VALUE : mBits / timeInSecs;
+        System.out.println("File was downloaded. Total speed: " + speed + " Mbits");
+    }
+
+    private void bulkDownload(String pattern) throws IOException {
+        send("bulk " + pattern);
+        receiveBulk();
+    }
+
+    private void receiveBulk() throws IOException {
+        Date startTime = new Date();
+        long bytes = 0;
+        int files = 0;
+        int skipped = 0;
         while (true) {
-            if (offset >= fileSize) {
-                Pair<File, String> desiredFile = findUnderDownloadedFileBy(file.getName());
-                if (desiredFile != null
-                        && desiredFile.getValue().equals(connection.getRemoteSocketAddress().toString())) {
-                    underDownloadedFiles.remove(desiredFile);
-                    Date endTime = new Date();
-                    double timeInSecs = (double)(endTime.getTime() - startTime.getTime()) / 1000D;
-                    double mBits = (double)((fileSize - initOffset) * 8) / 1000000D;
-                    double speed = timeInSecs == 0 ? Double.MAX_VALUE : mBits / timeInSecs;
-                    System.out.println("File was downloaded. Total speed: " + speed + " Mbits");
-                    while (true) {
-                        boolean easyEnd = true;
-                        for (Future operation : operations) if (!operation.isDone()) easyEnd = false;
-                        if (easyEnd) break;
-                    }
-                    fileChannel.close();
-                    break;
-                }
+            String line = frames.readMessage();
+            if (line == null) throw new IOException();
+            if (!line.startsWith("Bulk file|")) {
+                System.out.println(">>> " + line);
+                break;
+            }
+            String[] parts = line.split("\\|", 3);
+            long fileSize = Long.parseLong(parts[1]);
+            File file = new File("client " + parts[2]);
+            if (file.exists()) {
+                skip(fileSize);
+                skipped++;
+                continue;
+            }
+            receiveFile(file, fileSize);
+            bytes += fileSize;
+            files++;
+        }
+        if (skipped > 0) System.out.println(skipped + " files already exist, skipped");
+        if (files > 0) System.out.println(files + " files were downloaded. Total speed: "
+                + speedOf(bytes, startTime) + " Mbits");
+    }
+
+    private void receiveFile(File file, long fileSize) throws IOException {
+        ResumeIndex.presize(file, fileSize);
+        try (FileSink pipeline = mapped ? new MappedFile(file, fileSize, bufferSize, null)
+                : new WritePipeline(file, WRITE_QUEUE_DEPTH, bufferSize, null, true)) {
+            long offset = 0;
+            while (offset < fileSize) {
+                int count = pipeline.receive(frames, offset, fileSize - offset);
+                if (count == -1) throw new EOFException();
+                offset += count;
             }
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int count = input.read(buffer);
-            operations.add(fileChannel.write(ByteBuffer.wrap(Arrays.copyOfRange(buffer, 0, count)), offset));
+            frames.finishData();
+            pipeline.await();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    private void skip(long count) throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocate(bufferSize);
+        while (count > 0) {
+            scratch.clear();
+            if (count < bufferSize) scratch.limit((int) count);
+            int read = frames.read(scratch);
+            if (read == -1) throw new EOFException();
+            count -= read;
+        }
+        frames.finishData();
+    }
+
+    private void parallelDownload(String argument) throws IOException {
+        String[] parts = argument.split(" ", 3);
+        int streams = Integer.parseInt(parts[1]);
+        String filename = parts[2].trim();
+        File file = new File("client " + filename);
+        if (file.exists() && resumeIndex.get(file) == null) {
+            System.out.println("File already exists");
+            return;
+        }
+        Long fileSize = checkFileOnRemote("fetch " + filename + "|0|0");
+        if (fileSize == null) return;
+        frames.finishData();
+        final ResumeIndex.Entry entry = beginDownload(file, fileSize);
+        RangeSet missing = entry.getDone().missing(fileSize);
+        long missingBytes = missing.total();
+        Date startTime = new Date();
+        boolean completed = false;
+        try (final WritePipeline pipeline = new WritePipeline(file, WRITE_QUEUE_DEPTH * streams, bufferSize,
+                (position, count) -> resumeIndex.confirm(entry, position, count), entry.isFresh())) {
+            boolean streamed = runStreams(streams, missing.split(streams),
+                    (streamFrames, start, end) -> fetchRange(streamFrames, filename, pipeline, start, end));
+            pipeline.await();
+            completed = streamed;
+        } finally {
+            if (!completed) resumeIndex.interrupt(entry);
+            resumeIndex.checkpoint(entry);
+        }
+        if (!completed || !entry.isComplete()) {
+            System.out.println("Download was interrupted, " + entry.getDone().missing(fileSize).total()
+                    + " bytes are left. Repeat the command to resume");
+            return;
+        }
+        resumeIndex.remove(entry);
+        System.out.println("File was downloaded over " + streams + " streams. Total speed: "
+                + speedOf(missingBytes, startTime) + " Mbits");
+    }
+
+    private void fetchRange(FrameChannel streamFrames, String filename, WritePipeline pipeline,
+                            long start, long end) throws IOException {
+        streamFrames.writeMessage(FrameChannel.COMMAND, "fetch " + filename + "|" + start + "|" + end);
+        String reply = streamFrames.readMessage();
+        if (reply == null) throw new EOFException();
+        if (!reply.startsWith("File was found|")) throw new IOException(reply);
+        long offset = start;
+        while (offset < end) {
+            int count = pipeline.receive(streamFrames, offset, end - offset);
+            if (count == -1) throw new EOFException();
             offset += count;
-            System.out.println(">>> byte[" + count + "] " + ((double)offset / (double)fileSize) * 100 + "%");
         }
+        streamFrames.finishData();
+        System.out.println(">>> range " + start + "-" + end);
+    }
+
+    private boolean parallelUpload(String argument) throws IOException {
+        String[] parts = argument.split(" ", 3);
+        int streams = Integer.parseInt(parts[1]);
+        final String filename = parts[2].trim();
+        File file = new File(filename);
+        if (!file.exists()) {
+            System.out.println("No file");
+            return false;
+        }
+        final long fileSize = file.length();
+        send("ranges " + filename + "|" + fileSize);
+        String reply = frames.readMessage();
+        if (reply == null) throw new IOException();
+        System.out.println(">>> " + reply);
+        if (!reply.isEmpty() && !Character.isDigit(reply.charAt(0))) return false;
+        RangeSet missing = RangeSet.parse(reply);
+        long missingBytes = missing.total();
+        Date startTime = new Date();
+        boolean completed;
+        try (final FileChannel fileReader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            completed = runStreams(streams, missing.split(streams),
+                    (streamFrames, start, end) -> storeRange(streamFrames, filename, fileSize, fileReader, start, end));
+        }
+        if (!completed) {
+            System.out.println("Upload was interrupted. Repeat the command to resume");
+            return false;
+        }
+        System.out.println("File was uploaded over " + streams + " streams. Total speed: "
+                + speedOf(missingBytes, startTime) + " Mbits");
+        return false;
     }
 
-    private Pair<File, String> findUnderDownloadedFileBy(String name) {
-        for (Pair<File, String> underDownloadedFile : underDownloadedFiles)
-            if (name.toUpperCase().equals(underDownloadedFile.getKey().getName().toUpperCase()))
-                return underDownloadedFile;
-        return null;
+    private void storeRange(FrameChannel streamFrames, String filename, long fileSize, FileChannel fileReader,
+                            long start, long end) throws IOException {
+        streamFrames.writeMessage(FrameChannel.COMMAND,
+                "store " + filename + "|" + fileSize + "|" + start + "|" + end);
+        if (streamFrames.readNumber() == -1) throw new IOException(streamFrames.readMessage());
+        streamFrames.transferFrom(fileReader, start, end - start);
+        streamFrames.endData();
+        String reply = streamFrames.readMessage();
+        if (reply == null) throw new EOFException();
+        System.out.println("<<< range " + start + "-" + end);
     }
 
-    private void sendQuiet(String data) throws IOException {
-        data += "\r\n";
-        output.write(data.getBytes());
-        output.flush();
+    private boolean runStreams(int streams, List<long[]> ranges, final RangeTask task) {
+        final Queue<long[]> pending = new ConcurrentLinkedQueue<>(ranges);
+        ExecutorService executor = Executors.newFixedThreadPool(streams);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < Math.min(streams, ranges.size()); i++) {
+            results.add(executor.submit(() -> {
+                try (FrameChannel streamFrames = TransferClient.connect(connection.getRemoteSocketAddress(), config,
+                        bufferSize, frames.isBinary(), frames.isCompressing())) {
+                    long[] range;
+                    while ((range = pending.poll()) != null) task.transfer(streamFrames, range[0], range[1]);
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        boolean completed = true;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                System.out.println("Stream failed: " + e.getCause());
+                completed = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed = false;
+            }
+        }
+        return completed;
+    }
+
+    private static double speedOf(long bytes, Date startTime) {
+        double timeInSecs = (double)(new Date().getTime() - startTime.getTime()) / 1000D;
+        double mBits = (double)(bytes * 8) / 1000000D;
+        return timeInSecs == 0 ? Double.MAX_VALUE : mBits / timeInSecs;
     }
 
     private void send(String data) throws IOException {
-        data += "\r\n";
-        output.write(data.getBytes());
-        output.flush();
-        System.out.print("<<< " + data);
+        frames.writeMessage(FrameChannel.COMMAND, data);
+        System.out.println("<<< " + data);
     }
 
-    private void send(byte[] data, int count) throws IOException {
-        output.write(data, 0, count);
-        output.flush();
+    private void readReply() throws IOException {
+        String line = frames.readMessage();
+        if (line == null) throw new IOException();
+        System.out.println(">>> " + line);
     }
 
     private void disconnect() {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
         System.out.println(connection.getRemoteSocketAddress() + " disconnected");
     }
 }
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+class Config {
+
+    static final String DEFAULT_FILE = "spolks.properties";
+    private static final String PROPERTY_PREFIX = "spolks.";
+
+    private final Properties properties = new Properties();
+    private final List<String> arguments = new ArrayList<>();
+
+    public static Config parse(String[] args) throws IOException {
+        Config config = new Config();
+        Properties flags = new Properties();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                config.arguments.add(arg);
+                continue;
+            }
+            int delimiterIndex = arg.indexOf("=");
+            if (delimiterIndex == -1) flags.setProperty(arg.substring(2), "true");
+            else flags.setProperty(arg.substring(2, delimiterIndex), arg.substring(delimiterIndex + 1));
+        }
+        File file = new File(flags.getProperty("config", DEFAULT_FILE));
+        if (file.exists()) {
+            try (Reader reader = new FileReader(file)) {
+                config.properties.load(reader);
+            }
+        } else if (flags.containsKey("config")) {
+            throw new IOException("No config file " + file);
+        }
+        for (String key : System.getProperties().stringPropertyNames())
+            if (key.startsWith(PROPERTY_PREFIX))
+                config.properties.setProperty(key.substring(PROPERTY_PREFIX.length()), System.getProperty(key));
+        config.properties.putAll(flags);
+        return config;
+    }
+
+    public List<String> getArguments() {
+        return Collections.unmodifiableList(arguments);
+    }
+
+    public String get(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue).trim();
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public int getInt(String key, int defaultValue) {
+        long value = getLong(key, defaultValue);
+        if (value > Integer.MAX_VALUE) throw new IllegalArgumentException(key + " is too large: " + value);
+        return (int) value;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) return defaultValue;
+        value = value.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("k")) unit = 1024;
+        if (value.endsWith("m")) unit = 1024 * 1024;
+        if (value.endsWith("g")) unit = 1024 * 1024 * 1024;
+        if (unit > 1) value = value.substring(0, value.length() - 1);
+        try {
+            return Long.parseLong(value) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad value for " + key + ": " + properties.getProperty(key));
+        }
+    }
+
+    public void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    public void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(getBoolean("tcpNoDelay", true));
+        socket.setKeepAlive(getBoolean("keepAlive", false));
+        int sendBufferSize = getInt("sendBufferSize", 0);
+        int receiveBufferSize = getInt("receiveBufferSize", 0);
+        if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    public void configure(ServerSocket socket) throws SocketException {
+        int receiveBufferSize = getInt("receiveBufferSize", 0);
+        if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+    }
+}
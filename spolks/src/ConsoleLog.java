@@ -0,0 +1,29 @@
+class ConsoleLog {
+
+    private static final int MAX_LINES_PER_SECOND = 100;
+
+    private static long window;
+    private static int lines;
+    private static int suppressed;
+
+    public static void println(String line) {
+        String note = null;
+        synchronized (ConsoleLog.class) {
+            long second = System.nanoTime() / 1000000000L;
+            if (second != window) {
+                if (suppressed > 0) note = "... " + suppressed + " log lines suppressed";
+                window = second;
+                lines = 0;
+                suppressed = 0;
+            }
+            if (lines < MAX_LINES_PER_SECOND) {
+                lines++;
+            } else {
+                suppressed++;
+                line = null;
+            }
+        }
+        if (note != null) System.out.println(note);
+        if (line != null) System.out.println(line);
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class DeltaSync {
+
+    private static final int STRONG_LENGTH = 16;
+    private static final int SIGNATURE_LENGTH = 4 + STRONG_LENGTH;
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int MIN_WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int FILTER_BITS = 20;
+    private static final byte COPY = 'C';
+    private static final byte LITERAL = 'L';
+    private static final byte END = 'E';
+
+    static class Signatures {
+        private final int blockSize;
+        private final long fileSize;
+        private final int[] weak;
+        private final byte[] strong;
+        private final long[] filter = new long[(1 << FILTER_BITS) / 64];
+        private final Map<Integer, List<Integer>> blocks = new HashMap<>();
+
+        private Signatures(int blockSize, long fileSize, int count) {
+            this.blockSize = blockSize;
+            this.fileSize = fileSize;
+            weak = new int[count];
+            strong = new byte[count * STRONG_LENGTH];
+        }
+
+        private void index() {
+            int fullBlocks = (int) (fileSize / blockSize);
+            for (int i = 0; i < fullBlocks; i++) {
+                int hash = filterHash(weak[i]);
+                filter[hash >>> 6] |= 1L << hash;
+                blocks.computeIfAbsent(weak[i], key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        private boolean mayContain(int weak) {
+            int hash = filterHash(weak);
+            return (filter[hash >>> 6] & 1L << hash) != 0;
+        }
+
+        private int find(int weak, byte[] data, int offset, int length, int expected, MessageDigest digest) {
+            List<Integer> candidates = blocks.get(weak);
+            if (candidates == null) return -1;
+            digest.update(data, offset, length);
+            byte[] hash = digest.digest();
+            int found = -1;
+            for (int block : candidates) {
+                if (!matches(block, hash)) continue;
+                if (block == expected) return block;
+                if (found == -1) found = block;
+            }
+            return found;
+        }
+
+        private boolean matches(int block, byte[] hash) {
+            int offset = block * STRONG_LENGTH;
+            for (int i = 0; i < STRONG_LENGTH; i++) if (strong[offset + i] != hash[i]) return false;
+            return true;
+        }
+
+        private static int filterHash(int weak) {
+            return (weak * 0x9E3779B1) >>> (32 - FILTER_BITS);
+        }
+    }
+
+    static class Stats {
+        private long matched;
+        private long literal;
+        private long wire;
+        private boolean verified;
+
+        public long getMatched() {
+            return matched;
+        }
+
+        public long getLiteral() {
+            return literal;
+        }
+
+        public long getWire() {
+            return wire;
+        }
+
+        public boolean isVerified() {
+            return verified;
+        }
+    }
+
+    private static class Window {
+        private final FileChannel channel;
+        private final long size;
+        private final byte[] data;
+        private final MessageDigest digest;
+        private long base = 0;
+        private int length = 0;
+
+        private Window(FileChannel channel, long size, int capacity, MessageDigest digest) {
+            this.channel = channel;
+            this.size = size;
+            this.digest = digest;
+            data = new byte[capacity];
+        }
+
+        private void fill(long end, long keep) throws IOException {
+            if (end <= base + length) return;
+            int drop = (int) (keep - base);
+            digest.update(data, 0, drop);
+            System.arraycopy(data, drop, data, 0, length - drop);
+            base = keep;
+            length -= drop;
+            ByteBuffer target = ByteBuffer.wrap(data, length, (int) Math.min(data.length - length, size - base - length));
+            while (base + length < end) {
+                int read = channel.read(target, base + length);
+                if (read <= 0) throw new EOFException("File was truncated");
+                length += read;
+            }
+        }
+
+        private byte[] finish() throws IOException {
+            fill(size, base);
+            digest.update(data, 0, length);
+            return digest.digest();
+        }
+    }
+
+    private static class Encoder {
+        private final FrameChannel frames;
+        private final ByteBuffer ops;
+        private final Stats stats = new Stats();
+        private int runFirst = -1;
+        private int runCount = 0;
+
+        private Encoder(FrameChannel frames, int bufferSize) {
+            this.frames = frames;
+            ops = ByteBuffer.allocate(bufferSize);
+        }
+
+        private int expected() {
+            return runCount == 0 ? -1 : runFirst + runCount;
+        }
+
+        private void copy(int block, int blockSize) throws IOException {
+            stats.matched += blockSize;
+            if (runCount > 0 && block == runFirst + runCount) {
+                runCount++;
+                return;
+            }
+            flushRun();
+            runFirst = block;
+            runCount = 1;
+        }
+
+        private void literal(Window window, long from, long to) throws IOException {
+            if (from >= to) return;
+            flushRun();
+            reserve(5);
+            ops.put(LITERAL).putInt((int) (to - from));
+            int offset = (int) (from - window.base);
+            int remaining = (int) (to - from);
+            while (remaining > 0) {
+                if (!ops.hasRemaining()) flush();
+                int count = Math.min(remaining, ops.remaining());
+                ops.put(window.data, offset, count);
+                offset += count;
+                remaining -= count;
+            }
+            stats.literal += to - from;
+        }
+
+        private void end(long size, byte[] hash) throws IOException {
+            flushRun();
+            reserve(9 + STRONG_LENGTH);
+            ops.put(END).putLong(size).put(hash);
+            flush();
+        }
+
+        private void flushRun() throws IOException {
+            if (runCount == 0) return;
+            reserve(9);
+            ops.put(COPY).putInt(runFirst).putInt(runCount);
+            runCount = 0;
+        }
+
+        private void reserve(int count) throws IOException {
+            if (ops.remaining() < count) flush();
+        }
+
+        private void flush() throws IOException {
+            ops.flip();
+            stats.wire += ops.remaining();
+            if (ops.hasRemaining()) frames.writeData(ops);
+            ops.clear();
+        }
+    }
+
+    public static int blockSize(long fileSize) {
+        int size = (int) Math.min(MAX_BLOCK_SIZE, Math.sqrt(fileSize));
+        return Math.max(MIN_BLOCK_SIZE, (size + 1023) / 1024 * 1024);
+    }
+
+    public static int blockCount(long fileSize, int blockSize) {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    public static long writeSignatures(FileChannel file, long fileSize, int blockSize, FrameChannel frames,
+                                       int bufferSize) throws IOException {
+        MessageDigest digest = md5();
+        byte[] block = new byte[blockSize];
+        ByteBuffer out = ByteBuffer.allocate(Math.max(SIGNATURE_LENGTH, bufferSize / SIGNATURE_LENGTH * SIGNATURE_LENGTH));
+        for (long position = 0; position < fileSize; position += blockSize) {
+            int length = (int) Math.min(blockSize, fileSize - position);
+            ByteBuffer target = ByteBuffer.wrap(block, 0, length);
+            while (target.hasRemaining()) {
+                if (file.read(target, position + target.position()) <= 0) throw new EOFException("File was truncated");
+            }
+            digest.update(block, 0, length);
+            if (out.remaining() < SIGNATURE_LENGTH) flush(frames, out);
+            out.putInt(weak(block, 0, length)).put(digest.digest());
+        }
+        flush(frames, out);
+        return (long) blockCount(fileSize, blockSize) * SIGNATURE_LENGTH;
+    }
+
+    public static Signatures readSignatures(FrameChannel frames, int blockSize, int count, long fileSize)
+            throws IOException {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count != blockCount(fileSize, blockSize))
+            throw new IOException("Bad signatures");
+        Signatures signatures = new Signatures(blockSize, fileSize, count);
+        ByteBuffer signature = ByteBuffer.allocate(SIGNATURE_LENGTH);
+        for (int i = 0; i < count; i++) {
+            signature.clear();
+            readFully(frames, signature);
+            signatures.weak[i] = signature.getInt(0);
+            System.arraycopy(signature.array(), 4, signatures.strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        signatures.index();
+        return signatures;
+    }
+
+    public static Stats sendDelta(FileChannel file, long fileSize, Signatures signatures, FrameChannel frames,
+                                  int bufferSize) throws IOException {
+        int blockSize = signatures.blockSize;
+        MessageDigest digest = md5();
+        Window window = new Window(file, fileSize, Math.max(MIN_WINDOW_SIZE, 4 * (bufferSize + blockSize)), md5());
+        Encoder encoder = new Encoder(frames, bufferSize);
+        long position = 0;
+        long literalStart = 0;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+        while (position + blockSize <= fileSize) {
+            window.fill(Math.min(fileSize, position + blockSize + 1), Math.min(literalStart, position));
+            int offset = (int) (position - window.base);
+            byte[] data = window.data;
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    a += data[offset + i] & 0xff;
+                    b += (blockSize - i) * (data[offset + i] & 0xff);
+                }
+                rolling = true;
+            }
+            int weak = (a & 0xffff) | (b << 16);
+            int block = signatures.mayContain(weak)
+                    ? signatures.find(weak, data, offset, blockSize, encoder.expected(), digest) : -1;
+            if (block >= 0) {
+                encoder.literal(window, literalStart, position);
+                encoder.copy(block, blockSize);
+                position += blockSize;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+            if (position + blockSize < fileSize) {
+                int out = data[offset] & 0xff;
+                a += (data[offset + blockSize] & 0xff) - out;
+                b += a - blockSize * out;
+            }
+            position++;
+            if (position - literalStart >= bufferSize) {
+                encoder.literal(window, literalStart, position);
+                literalStart = position;
+            }
+        }
+        window.fill(fileSize, Math.min(literalStart, position));
+        int lastBlock = blockCount(signatures.fileSize, blockSize) - 1;
+        long lastLength = signatures.fileSize - (long) lastBlock * blockSize;
+        if (lastBlock >= 0 && lastLength < blockSize && fileSize - position == lastLength) {
+            digest.update(window.data, (int) (position - window.base), (int) lastLength);
+            if (signatures.matches(lastBlock, digest.digest())) {
+                encoder.literal(window, literalStart, position);
+                encoder.copy(lastBlock, (int) lastLength);
+                position = fileSize;
+                literalStart = position;
+            }
+        }
+        encoder.literal(window, literalStart, fileSize);
+        encoder.end(fileSize, window.finish());
+        return encoder.stats;
+    }
+
+    public static Stats applyDelta(FrameChannel frames, FileChannel old, long oldSize, int blockSize,
+                                   FileChannel target, int bufferSize) throws IOException {
+        MessageDigest digest = md5();
+        Stats stats = new Stats();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        ByteBuffer data = ByteBuffer.allocate(bufferSize);
+        long written = 0;
+        while (true) {
+            byte op = read(frames, header, 1).get(0);
+            if (op == COPY) {
+                read(frames, header, 8);
+                int first = header.getInt(0);
+                int count = header.getInt(4);
+                long position = (long) first * blockSize;
+                if (old == null || first < 0 || count <= 0 || position >= oldSize)
+                    throw new IOException("Bad block " + first);
+                long end = Math.min(position + (long) count * blockSize, oldSize);
+                while (position < end) {
+                    data.clear();
+                    if (end - position < data.capacity()) data.limit((int) (end - position));
+                    if (old.read(data, position) <= 0) throw new EOFException("File was truncated");
+                    data.flip();
+                    position += data.remaining();
+                    written += write(target, data, written, digest);
+                }
+                stats.matched += end - (long) first * blockSize;
+                stats.wire += 9;
+            } else if (op == LITERAL) {
+                int length = read(frames, header, 4).getInt(0);
+                if (length < 0) throw new IOException("Bad literal length " + length);
+                for (int remaining = length; remaining > 0; ) {
+                    data.clear();
+                    if (remaining < data.capacity()) data.limit(remaining);
+                    readFully(frames, data);
+                    data.flip();
+                    remaining -= data.remaining();
+                    written += write(target, data, written, digest);
+                }
+                stats.literal += length;
+                stats.wire += 5 + length;
+            } else if (op == END) {
+                long size = read(frames, header, 8).getLong(0);
+                byte[] expected = new byte[STRONG_LENGTH];
+                readFully(frames, ByteBuffer.wrap(expected));
+                stats.wire += 9 + STRONG_LENGTH;
+                stats.verified = size == written && Arrays.equals(expected, digest.digest());
+                return stats;
+            } else {
+                throw new IOException("Bad sync operation " + op);
+            }
+        }
+    }
+
+    private static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static int write(FileChannel target, ByteBuffer data, long position, MessageDigest digest)
+            throws IOException {
+        digest.update(data.array(), data.position(), data.remaining());
+        int count = data.remaining();
+        while (data.hasRemaining()) position += target.write(data, position);
+        return count;
+    }
+
+    private static ByteBuffer read(ReadableByteChannel source, ByteBuffer buffer, int count) throws IOException {
+        buffer.clear();
+        buffer.limit(count);
+        readFully(source, buffer);
+        return buffer;
+    }
+
+    private static void readFully(ReadableByteChannel source, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (source.read(target) == -1) throw new EOFException();
+        }
+    }
+
+    private static void flush(FrameChannel frames, ByteBuffer out) throws IOException {
+        out.flip();
+        if (out.hasRemaining()) frames.writeData(out);
+        out.clear();
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+class FileCache {
+
+    private static final int DOORKEEPER_SIZE = 4096;
+
+    private final long capacity;
+    private final long maxFileSize;
+    private final TransferMetrics metrics;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Boolean> seen = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DOORKEEPER_SIZE;
+        }
+    };
+    private long size = 0;
+
+    private static class Entry {
+        private final ByteBuffer content;
+        private final long lastModified;
+
+        private Entry(ByteBuffer content, long lastModified) {
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public FileCache(long capacity, long maxFileSize, TransferMetrics metrics) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+        this.metrics = metrics;
+    }
+
+    public ByteBuffer get(File file, Executor loader) {
+        long length = file.length();
+        if (length > maxFileSize || !file.isFile()) return null;
+        synchronized (this) {
+            Entry entry = entries.get(file.getAbsolutePath());
+            if (entry != null && entry.lastModified == file.lastModified() && entry.content.capacity() == length) {
+                metrics.cacheHit();
+                return entry.content.duplicate();
+            }
+        }
+        loader.execute(() -> {
+            try {
+                get(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        return null;
+    }
+
+    public ByteBuffer get(File file) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (length > maxFileSize || !file.isFile()) return null;
+        String key = file.getAbsolutePath();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.content.capacity() == length) {
+                metrics.cacheHit();
+                return entry.content.duplicate();
+            }
+            metrics.cacheMiss();
+            if (entry != null) {
+                remove(key);
+            } else if (seen.put(key, Boolean.TRUE) == null) {
+                return null;
+            } else {
+                seen.remove(key);
+            }
+        }
+        ByteBuffer content = load(file, length, lastModified);
+        if (content == null) return null;
+        synchronized (this) {
+            remove(key);
+            entries.put(key, new Entry(content, lastModified));
+            size += length;
+            metrics.cacheResized(length);
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (size > capacity && eldest.hasNext()) {
+                Entry evicted = eldest.next().getValue();
+                if (evicted.content == content) continue;
+                eldest.remove();
+                size -= evicted.content.capacity();
+                metrics.cacheResized(-evicted.content.capacity());
+                metrics.cacheEvicted();
+            }
+        }
+        return content.duplicate();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) return;
+        size -= entry.content.capacity();
+        metrics.cacheResized(-entry.content.capacity());
+    }
+
+    private static ByteBuffer load(File file, long length, long lastModified) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content, content.position()) == -1) return null;
+            }
+            if (fileChannel.size() != length || file.lastModified() != lastModified) return null;
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,14 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+interface FileSink extends Closeable {
+
+    interface Listener {
+        void written(long position, int count);
+    }
+
+    int receive(ReadableByteChannel source, long position, long limit) throws IOException;
+
+    void await() throws IOException;
+}
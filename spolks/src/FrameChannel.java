@@ -0,0 +1,470 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+class FrameChannel implements ReadableByteChannel {
+
+    static final String BINARY_PROTOCOL = "protocol binary";
+    static final String DEFLATE = "deflate";
+
+    static final byte COMMAND = 1;
+    static final byte META = 2;
+    static final byte DATA = 3;
+    static final byte ACK = 4;
+    static final byte ERROR = 5;
+    static final byte CHECKSUM = 6;
+    static final byte COMPRESSED = 7;
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 5;
+    private static final int MAP_WINDOW = 16 * 1024 * 1024;
+    private static final int INCOMPRESSIBLE_SKIP = 16;
+
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+    private final boolean zeroCopy;
+    private ByteBuffer buffer;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8);
+    private final ByteBuffer trailer = ByteBuffer.allocate(HEADER_SIZE + 4);
+    private final ByteBuffer digest = ByteBuffer.allocate(4);
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+    private final ByteBuffer[] chunk = new ByteBuffer[3];
+    private final Checksum chunkChecksum = new CRC32C();
+    private final Checksum rangeChecksum = new CRC32C();
+    private ByteBuffer inflated;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] deflated;
+    private int skipCompression = 0;
+    private RateLimiter limiter;
+    private MappedByteBuffer window;
+    private FileChannel windowChannel;
+    private long windowStart;
+    private boolean binary = false;
+    private byte type;
+    private int length;
+
+    public FrameChannel(Socket socket, int bufferSize) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            input = channel;
+            output = channel;
+            zeroCopy = true;
+        } else {
+            input = Channels.newChannel(socket.getInputStream());
+            output = Channels.newChannel(socket.getOutputStream());
+            zeroCopy = false;
+        }
+        buffer = ByteBuffer.allocate(bufferSize);
+        buffer.flip();
+        inflated = ByteBuffer.allocate(bufferSize);
+        inflated.flip();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isCompressing() {
+        return deflater != null;
+    }
+
+    public void setCompressing(boolean compressing) {
+        if (compressing == isCompressing()) return;
+        if (compressing) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflated = new byte[buffer.capacity()];
+        } else {
+            deflater.end();
+            deflater = null;
+            deflated = null;
+        }
+    }
+
+    public void setLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = buffer.position() + scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) != '\n') continue;
+                int length = i - buffer.position();
+                String line = new String(buffer.array(), buffer.position(),
+                        length > 0 && buffer.get(i - 1) == '\r' ? length - 1 : length, StandardCharsets.UTF_8);
+                buffer.position(i + 1);
+                return line;
+            }
+            scanned = buffer.remaining();
+            buffer.compact();
+            if (!buffer.hasRemaining()) throw new IOException("Line is too long");
+            int count = input.read(buffer);
+            buffer.flip();
+            if (count == -1) return null;
+        }
+    }
+
+    public byte readFrame() throws IOException {
+        if (!require(HEADER_SIZE)) return -1;
+        type = buffer.get();
+        length = buffer.getInt();
+        if (length < 0) throw new IOException("Bad frame length " + length);
+        if (type != DATA) {
+            if (length > buffer.capacity() && (type != COMPRESSED || length > MAX_CHUNK_SIZE + 4))
+                throw new IOException("Frame is too long");
+            if (length > buffer.capacity()) grow(length);
+            if (!require(length)) throw new EOFException();
+        }
+        return type;
+    }
+
+    public String readMessage() throws IOException {
+        if (!binary) return readLine();
+        if (readFrame() == -1) return null;
+        if (type == DATA) throw new IOException("Unexpected data frame");
+        return text();
+    }
+
+    public long readNumber() throws IOException {
+        if (!binary) {
+            String line = readLine();
+            if (line == null) throw new EOFException();
+            return Long.parseLong(line.trim());
+        }
+        if (readFrame() == -1) throw new EOFException();
+        if (type == ERROR) throw new IOException(text());
+        if (type != META || length != 8) throw new IOException("Unexpected frame " + type);
+        return buffer.getLong();
+    }
+
+    public void finishData() throws IOException {
+        if (!binary) return;
+        if (inflated.hasRemaining() || readFrame() != ACK || length != 4)
+            throw new IOException("Transfer was not acknowledged");
+        int expected = buffer.getInt();
+        int actual = (int) rangeChecksum.getValue();
+        rangeChecksum.reset();
+        if (expected != actual) throw new IOException("Transfer checksum mismatch");
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!binary) return throttle(readBuffered(dst));
+        if (!inflated.hasRemaining()) {
+            if (readFrame() == -1) return -1;
+            if (type == COMPRESSED) {
+                inflate();
+            } else if (type == DATA) {
+                if (length > MAX_CHUNK_SIZE) throw new IOException("Chunk is too long");
+                if (dst.remaining() >= length) return throttle(readChunk(dst));
+                if (length > inflated.capacity()) inflated = ByteBuffer.allocate(length);
+                inflated.clear();
+                readChunk(inflated);
+                inflated.flip();
+            } else {
+                throw new IOException("Unexpected frame " + type);
+            }
+        }
+        int count = Math.min(dst.remaining(), inflated.remaining());
+        ByteBuffer slice = inflated.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        inflated.position(slice.position());
+        return throttle(count);
+    }
+
+    private int readChunk(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int limit = dst.limit();
+        dst.limit(start + length);
+        try {
+            while (dst.hasRemaining()) {
+                if (readBuffered(dst) == -1) throw new EOFException();
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        ByteBuffer received = dst.duplicate();
+        received.limit(dst.position());
+        received.position(start);
+        chunkChecksum.reset();
+        chunkChecksum.update(received);
+        int count = dst.position() - start;
+        verifyChunk();
+        return count;
+    }
+
+    private int readBuffered(ByteBuffer dst) throws IOException {
+        if (!buffer.hasRemaining()) return input.read(dst);
+        int count = Math.min(dst.remaining(), buffer.remaining());
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        buffer.position(slice.position());
+        return count;
+    }
+
+    private void inflate() throws IOException {
+        if (length < 4) throw new IOException("Bad compressed frame");
+        int rawLength = buffer.getInt();
+        if (rawLength < 0 || rawLength > MAX_CHUNK_SIZE) throw new IOException("Compressed chunk is too long");
+        if (rawLength > inflated.capacity()) inflated = ByteBuffer.allocate(rawLength);
+        if (inflater == null) inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(buffer.array(), buffer.position(), length - 4);
+        buffer.position(buffer.position() + length - 4);
+        inflated.clear();
+        try {
+            if (inflater.inflate(inflated.array(), 0, rawLength) != rawLength || !inflater.finished())
+                throw new IOException("Compressed chunk is corrupted");
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed chunk is corrupted", e);
+        }
+        inflated.limit(rawLength);
+        chunkChecksum.reset();
+        chunkChecksum.update(inflated.duplicate());
+        verifyChunk();
+    }
+
+    private void verifyChunk() throws IOException {
+        if (readFrame() != CHECKSUM || length != 4) throw new IOException("Chunk checksum is missing");
+        int actual = (int) chunkChecksum.getValue();
+        if (buffer.getInt() != actual) throw new IOException("Chunk checksum mismatch");
+        chain(actual);
+    }
+
+    public void writeLine(String line) throws IOException {
+        writeFully(ByteBuffer.wrap((line + "\r\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void writeMessage(byte type, String text) throws IOException {
+        if (!binary) {
+            writeLine(text);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeHeader(type, bytes.length);
+        frame[0] = header;
+        frame[1] = ByteBuffer.wrap(bytes);
+        writeFully(frame);
+    }
+
+    public void writeNumber(long value) throws IOException {
+        if (!binary) {
+            writeLine(String.valueOf(value));
+            return;
+        }
+        writeHeader(META, 8);
+        header.limit(HEADER_SIZE + 8);
+        header.putLong(HEADER_SIZE, value);
+        writeFully(header);
+    }
+
+    public void writeData(ByteBuffer data) throws IOException {
+        throttle(data.remaining());
+        if (!binary) {
+            writeFully(data);
+            return;
+        }
+        chunkChecksum.reset();
+        chunkChecksum.update(data.duplicate());
+        writeTrailer((int) chunkChecksum.getValue());
+        int compressed = deflate(data);
+        if (compressed > 0) {
+            writeHeader(COMPRESSED, compressed);
+            chunk[1] = ByteBuffer.wrap(deflated, 0, compressed);
+            data.position(data.limit());
+        } else {
+            writeHeader(DATA, data.remaining());
+            chunk[1] = data;
+        }
+        chunk[0] = header;
+        chunk[2] = trailer;
+        writeFully(chunk);
+    }
+
+    private int deflate(ByteBuffer data) {
+        if (deflater == null || data.remaining() > deflated.length) return 0;
+        if (skipCompression > 0) {
+            skipCompression--;
+            return 0;
+        }
+        deflater.reset();
+        deflater.setInput(data.duplicate());
+        deflater.finish();
+        ByteBuffer.wrap(deflated).putInt(data.remaining());
+        int count = 4;
+        while (!deflater.finished() && count < data.remaining()) {
+            int written = deflater.deflate(deflated, count, Math.min(deflated.length, data.remaining()) - count);
+            if (written == 0 && deflater.needsInput()) break;
+            count += written;
+        }
+        if (deflater.finished() && count < data.remaining()) return count;
+        skipCompression = INCOMPRESSIBLE_SKIP;
+        return 0;
+    }
+
+    public long transferFrom(FileChannel fileChannel, long position, long count) throws IOException {
+        if (!zeroCopy || (binary && isCompressing())) return copyFrom(fileChannel, position, count);
+        long sent = 0;
+        while (sent < count) {
+            long chunk = binary || limiter != null ? Math.min(count - sent, buffer.capacity()) : count - sent;
+            if (binary) {
+                writeData(mapped(fileChannel, position + sent, (int) chunk));
+                sent += chunk;
+                continue;
+            }
+            throttle(chunk);
+            long end = sent + chunk;
+            while (sent < end) {
+                long transferred = fileChannel.transferTo(position + sent, end - sent, output);
+                if (transferred <= 0) throw new EOFException("File was truncated");
+                sent += transferred;
+            }
+        }
+        return sent;
+    }
+
+    public void endData() throws IOException {
+        if (!binary) return;
+        window = null;
+        windowChannel = null;
+        writeHeader(ACK, 4);
+        header.limit(HEADER_SIZE + 4);
+        header.putInt(HEADER_SIZE, (int) rangeChecksum.getValue());
+        rangeChecksum.reset();
+        writeFully(header);
+    }
+
+    private ByteBuffer mapped(FileChannel fileChannel, long position, int count) throws IOException {
+        if (fileChannel != windowChannel || position < windowStart || position + count > windowStart + window.limit()) {
+            window = null;
+            long size = Math.min(MAP_WINDOW, fileChannel.size() - position);
+            if (size < count) throw new EOFException("File was truncated");
+            window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            windowChannel = fileChannel;
+            windowStart = position;
+        }
+        ByteBuffer data = window.duplicate();
+        data.position((int) (position - windowStart));
+        data.limit(data.position() + count);
+        return data;
+    }
+
+    private void writeTrailer(int checksum) {
+        trailer.clear();
+        trailer.put(CHECKSUM).putInt(4).putInt(checksum);
+        trailer.flip();
+        chain(checksum);
+    }
+
+    private void chain(int checksum) {
+        digest.putInt(0, checksum);
+        rangeChecksum.update(digest.array(), 0, 4);
+    }
+
+    private long copyFrom(FileChannel fileChannel, long position, long count) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(buffer.capacity());
+        long sent = 0;
+        while (sent < count) {
+            chunk.clear();
+            if (count - sent < chunk.capacity()) chunk.limit((int) (count - sent));
+            int read = fileChannel.read(chunk, position + sent);
+            if (read <= 0) throw new EOFException("File was truncated");
+            chunk.flip();
+            writeData(chunk);
+            sent += read;
+        }
+        return sent;
+    }
+
+    private int throttle(long count) throws IOException {
+        if (limiter != null && count > 0) limiter.acquire(count);
+        return (int) count;
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        grown.put(buffer);
+        grown.flip();
+        buffer = grown;
+    }
+
+    private void writeHeader(byte type, int length) {
+        header.clear();
+        header.put(type).putInt(length);
+        header.flip();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) output.write(data);
+    }
+
+    private void writeFully(ByteBuffer[] data) throws IOException {
+        if (output instanceof SocketChannel) {
+            SocketChannel channel = (SocketChannel) output;
+            for (ByteBuffer part : data) {
+                while (part.hasRemaining()) channel.write(data);
+            }
+        } else {
+            for (ByteBuffer part : data) writeFully(part);
+        }
+    }
+
+    private String text() {
+        String text = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+    private boolean require(int count) throws IOException {
+        if (buffer.remaining() >= count) return true;
+        buffer.compact();
+        buffer.limit(count);
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer) == -1) {
+                buffer.limit(buffer.position());
+                buffer.flip();
+                if (buffer.hasRemaining()) throw new EOFException();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return input.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        setCompressing(false);
+        if (inflater != null) inflater.end();
+        input.close();
+        output.close();
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+public class LoadGenerator {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SERVER_PORT = 1337;
+    private static final int CONNECTIONS = 4;
+    private static final int PAYLOAD_SIZE = 1024 * 1024;
+    private static final String MIX = "echo:40,time:10,upload:25,download:25";
+    private static final int MAX_ERROR_MESSAGES = 100;
+
+    private final Config config;
+    private final SocketAddress address;
+    private final int bufferSize;
+    private final int connections;
+    private final long durationNanos;
+    private final long minFileSize;
+    private final long maxFileSize;
+    private final int resumePercent;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final ByteBuffer payload;
+    private final List<Operation> mix = new ArrayList<>();
+    private final List<Seed> seeds = new ArrayList<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Stats echo = new Stats("echo");
+    private final Stats time = new Stats("time");
+    private final Stats upload = new Stats("upload");
+    private final Stats download = new Stats("download");
+    private final Stats resumedUpload = new Stats("upload (resumed)");
+    private final Stats resumedDownload = new Stats("download (resumed)");
+    private final List<Stats> stats = List.of(echo, time, upload, download, resumedUpload, resumedDownload);
+    private volatile String serverStats = "n/a";
+    private int totalWeight = 0;
+
+    private enum Kind { ECHO, TIME, UPLOAD, DOWNLOAD }
+
+    private static class Operation {
+        private final Kind kind;
+        private final int weight;
+
+        private Operation(Kind kind, int weight) {
+            this.kind = kind;
+            this.weight = weight;
+        }
+    }
+
+    private static class Seed {
+        private final String name;
+        private final long size;
+        private final long checksum;
+
+        private Seed(String name, long size, long checksum) {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    private static class Stats {
+        private final String name;
+        private final TransferMetrics.Histogram latency = new TransferMetrics.Histogram();
+        private final TransferMetrics.Histogram intervalLatency = new TransferMetrics.Histogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder intervalBytes = new LongAdder();
+
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        private void completed(long nanos, long count) {
+            latency.record(nanos);
+            intervalLatency.record(nanos);
+            bytes.add(count);
+            intervalBytes.add(count);
+        }
+    }
+
+    public LoadGenerator(Config config) {
+        this.config = config;
+        address = new InetSocketAddress(config.get("host", "127.0.0.1"), config.getInt("port", SERVER_PORT));
+        bufferSize = config.getInt("bufferSize", BUFFER_SIZE);
+        connections = config.getInt("connections", CONNECTIONS);
+        durationNanos = TimeUnit.SECONDS.toNanos(config.getLong("duration", 60));
+        minFileSize = config.getLong("minFileSize", 4 * 1024);
+        maxFileSize = config.getLong("maxFileSize", 1024 * 1024);
+        resumePercent = config.getInt("resumePercent", 10);
+        if (bufferSize < 1024 || bufferSize > FrameChannel.MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("Bad buffer size " + bufferSize);
+        if (connections < 1) throw new IllegalArgumentException("Bad connection count " + connections);
+        if (minFileSize < 2 || minFileSize > maxFileSize)
+            throw new IllegalArgumentException("Bad file sizes " + minFileSize + ".." + maxFileSize);
+        for (String item : config.get("mix", MIX).split(",")) {
+            String[] parts = item.trim().split(":");
+            Operation operation = new Operation(Kind.valueOf(parts[0].trim().toUpperCase()),
+                    parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+            if (operation.weight <= 0) continue;
+            mix.add(operation);
+            totalWeight += operation.weight;
+        }
+        if (totalWeight == 0) throw new IllegalArgumentException("Empty mix");
+        byte[] random = new byte[PAYLOAD_SIZE];
+        new Random(42).nextBytes(random);
+        payload = ByteBuffer.allocateDirect(PAYLOAD_SIZE).put(random).flip().asReadOnlyBuffer();
+    }
+
+    public void run() throws IOException {
+        System.out.println("Load: " + connections + " connections to " + address + " for "
+                + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s, mix " + config.get("mix", MIX) + ", files "
+                + minFileSize + ".." + maxFileSize + " bytes, " + resumePercent + "% resumed transfers");
+        FrameChannel control = connect();
+        try {
+            seed(control);
+            long started = System.nanoTime();
+            long deadline = started + durationNanos;
+            long interval = config.getLong("reportInterval", 10);
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(() -> report(control, started, interval), interval, interval,
+                    TimeUnit.SECONDS);
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                final int id = i;
+                Thread worker = new Thread(() -> work(id, deadline), "load-" + i);
+                worker.start();
+                workers.add(worker);
+            }
+            try {
+                for (Thread worker : workers) worker.join();
+                reporter.shutdown();
+                reporter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Thread worker : workers) worker.interrupt();
+                reporter.shutdownNow();
+            }
+            summary(System.nanoTime() - started);
+            pollServer(control);
+            System.out.println("Server: " + serverStats);
+        } finally {
+            try {
+                for (Seed seed : seeds) delete(control, seed.name);
+            } catch (IOException e) {
+                System.out.println("Could not delete seed files: " + e);
+            }
+            control.close();
+        }
+    }
+
+    private void seed(FrameChannel control) throws IOException {
+        if (mix.stream().noneMatch(operation -> operation.kind == Kind.DOWNLOAD)) return;
+        Random random = new Random(runId.hashCode());
+        for (int i = 0; i < Math.max(1, config.getInt("seedFiles", 4)); i++) {
+            String name = "load-" + runId + "-seed" + i + ".bin";
+            long size = fileSize(random);
+            uploadFrom(control, name, size, size);
+            CRC32C checksum = new CRC32C();
+            for (long position = 0; position < size; ) {
+                ByteBuffer chunk = slice(position, size);
+                position += chunk.remaining();
+                checksum.update(chunk);
+            }
+            seeds.add(new Seed(name, size, checksum.getValue()));
+        }
+    }
+
+    private void work(int id, long deadline) {
+        Random random = ThreadLocalRandom.current();
+        FrameChannel[] frames = new FrameChannel[1];
+        long sequence = 0;
+        while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+            Operation operation = pick(random);
+            boolean resumed = random.nextInt(100) < resumePercent;
+            Stats target = statsOf(operation.kind, resumed);
+            String uploaded = null;
+            long started = System.nanoTime();
+            try {
+                if (frames[0] == null) frames[0] = connect();
+                long count;
+                switch (operation.kind) {
+                    case ECHO:
+                        String reply = TransferClient.command(frames[0], "echo load " + id);
+                        if (!reply.equals("load " + id)) throw new IOException("Bad echo " + reply);
+                        count = 0;
+                        break;
+                    case TIME:
+                        TransferClient.command(frames[0], "time");
+                        count = 0;
+                        break;
+                    case UPLOAD:
+                        uploaded = "load-" + runId + "-" + id + "-" + sequence++ + ".bin";
+                        count = upload(frames, uploaded, fileSize(random), resumed);
+                        break;
+                    default:
+                        count = download(frames, seeds.get(random.nextInt(seeds.size())), resumed);
+                }
+                target.completed(System.nanoTime() - started, count);
+                if (uploaded != null) delete(frames[0], uploaded);
+            } catch (IOException | RuntimeException e) {
+                target.errors.increment();
+                String message = target.name + ": " + e;
+                LongAdder counter = errors.get(message);
+                if (counter == null && errors.size() < MAX_ERROR_MESSAGES)
+                    counter = errors.computeIfAbsent(message, key -> new LongAdder());
+                if (counter != null) counter.increment();
+                close(frames[0]);
+                frames[0] = null;
+            }
+        }
+        close(frames[0]);
+    }
+
+    private long upload(FrameChannel[] frames, String name, long size, boolean resumed) throws IOException {
+        long sent = 0;
+        if (resumed) {
+            long cut = size / 2;
+            sent += uploadFrom(frames[0], name, size, cut);
+            close(frames[0]);
+            frames[0] = connect();
+        }
+        sent += uploadFrom(frames[0], name, size, size);
+        return sent;
+    }
+
+    private static void delete(FrameChannel frames, String name) throws IOException {
+        String reply = TransferClient.command(frames, "delete " + name);
+        if (!reply.endsWith("was deleted")) throw new IOException("Could not delete " + name + ": " + reply);
+    }
+
+    private long uploadFrom(FrameChannel frames, String name, long size, long end) throws IOException {
+        frames.writeMessage(FrameChannel.COMMAND, "upload " + name + "|" + size);
+        long offset = frames.readNumber();
+        if (offset == -1) throw new IOException(TransferClient.reply(frames));
+        if (offset > end) throw new IOException("Upload resumed at " + offset + " after " + end + " bytes were sent");
+        long start = offset;
+        while (offset < end) {
+            ByteBuffer chunk = slice(offset, end);
+            offset += chunk.remaining();
+            frames.writeData(chunk);
+        }
+        if (end < size) return end - start;
+        frames.endData();
+        String reply = TransferClient.reply(frames);
+        if (!reply.contains("successfully")) throw new IOException(reply);
+        return end - start;
+    }
+
+    private long download(FrameChannel[] frames, Seed seed, boolean resumed) throws IOException {
+        CRC32C checksum = new CRC32C();
+        ByteBuffer scratch = ByteBuffer.allocate(bufferSize);
+        long offset = 0;
+        if (resumed) {
+            offset = downloadFrom(frames[0], seed, 0, seed.size / 2, checksum, scratch);
+            close(frames[0]);
+            frames[0] = connect();
+        }
+        downloadFrom(frames[0], seed, offset, seed.size, checksum, scratch);
+        frames[0].finishData();
+        if (checksum.getValue() != seed.checksum) throw new IOException("Corrupt download of " + seed.name);
+        return seed.size;
+    }
+
+    private long downloadFrom(FrameChannel frames, Seed seed, long offset, long end, CRC32C checksum,
+                              ByteBuffer scratch) throws IOException {
+        long size = TransferClient.found(TransferClient.command(frames, "download server " + seed.name));
+        if (size != seed.size) throw new IOException("Seed " + seed.name + " has " + size + " bytes");
+        frames.writeNumber(offset);
+        while (offset < end) {
+            scratch.clear();
+            if (end - offset < scratch.capacity()) scratch.limit((int) (end - offset));
+            int count = frames.read(scratch);
+            if (count == -1) throw new IOException("Download of " + seed.name + " ended at " + offset);
+            scratch.flip();
+            checksum.update(scratch);
+            offset += count;
+        }
+        return offset;
+    }
+
+    private FrameChannel connect() throws IOException {
+        return TransferClient.connect(address, config, bufferSize, config.getBoolean("binary", false),
+                config.getBoolean("compress", false));
+    }
+
+    private Operation pick(Random random) {
+        int ticket = random.nextInt(totalWeight);
+        for (Operation operation : mix) {
+            ticket -= operation.weight;
+            if (ticket < 0) return operation;
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    private Stats statsOf(Kind kind, boolean resumed) {
+        switch (kind) {
+            case ECHO:
+                return echo;
+            case TIME:
+                return time;
+            case UPLOAD:
+                return resumed ? resumedUpload : upload;
+            default:
+                return resumed ? resumedDownload : download;
+        }
+    }
+
+    private long fileSize(Random random) {
+        double scale = Math.log((double) maxFileSize / minFileSize);
+        return Math.min(maxFileSize, (long) (minFileSize * Math.exp(random.nextDouble() * scale)));
+    }
+
+    private ByteBuffer slice(long position, long end) {
+        ByteBuffer chunk = payload.duplicate();
+        int start = (int) (position % PAYLOAD_SIZE);
+        chunk.position(start);
+        chunk.limit((int) Math.min(PAYLOAD_SIZE, start + Math.min(bufferSize, end - position)));
+        return chunk;
+    }
+
+    private void report(FrameChannel control, long started, long interval) {
+        pollServer(control);
+        long operations = 0;
+        long bytes = 0;
+        StringBuilder latencies = new StringBuilder();
+        for (Stats item : stats) {
+            long count = item.intervalLatency.count();
+            operations += count;
+            bytes += item.intervalBytes.sumThenReset();
+            if (count > 0) latencies.append(String.format(", %s p50 %.2f/p99 %.2f ms", item.name,
+                    item.intervalLatency.percentile(50) / 1e6, item.intervalLatency.percentile(99) / 1e6));
+            item.intervalLatency.reset();
+        }
+        ConsoleLog.println(String.format("[%d s] %.1f ops/s, %.1f Mbits, %d errors%s | server: %s",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), (double) operations / interval,
+                bytes * 8 / 1e6 / interval, errorCount(), latencies, serverStats));
+    }
+
+    private void pollServer(FrameChannel control) {
+        if (!config.getBoolean("serverStats", true)) return;
+        synchronized (control) {
+            try {
+                String reply = TransferClient.command(control, "stats");
+                serverStats = reply.startsWith("Stats|") ? reply.substring(6) : reply;
+            } catch (IOException e) {
+                serverStats = "n/a (" + e + ")";
+            }
+        }
+    }
+
+    private long errorCount() {
+        long count = 0;
+        for (Stats item : stats) count += item.errors.sum();
+        return count;
+    }
+
+    private void summary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%-20s %9s %7s %9s %9s %9s %9s %9s %9s", "operation", "count", "errors",
+                "mean", "p50", "p90", "p99", "p99.9", "max (ms)"));
+        long operations = 0;
+        long bytes = 0;
+        for (Stats item : stats) {
+            TransferMetrics.Histogram latency = item.latency;
+            operations += latency.count();
+            bytes += item.bytes.sum();
+            if (latency.count() == 0 && item.errors.sum() == 0) continue;
+            System.out.println(String.format("%-20s %9d %7d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f", item.name,
+                    latency.count(), item.errors.sum(), latency.mean() / 1e6, latency.percentile(50) / 1e6,
+                    latency.percentile(90) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+                    latency.max() / 1e6));
+        }
+        System.out.println(String.format("Total: %d operations in %.1f s (%.1f ops/s), %.1f Mbits, %d errors",
+                operations, seconds, operations / seconds, bytes * 8 / 1e6 / seconds, errorCount()));
+        List<String> messages = new ArrayList<>(errors.keySet());
+        Collections.sort(messages);
+        for (String message : messages) System.out.println("  " + errors.get(message).sum() + " x " + message);
+    }
+
+    private static void close(FrameChannel frames) {
+        if (frames == null) return;
+        try {
+            frames.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+class MappedFile implements FileSink {
+
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    private final int chunkSize;
+    private final Listener listener;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    public MappedFile(File file, long fileSize, int chunkSize, Listener listener) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        if (this.file.length() < fileSize) this.file.setLength(fileSize);
+        fileChannel = this.file.getChannel();
+    }
+
+    public static long send(FileChannel fileChannel, long position, long count, int chunkSize, FrameChannel frames,
+                            TransferClient.ProgressListener progress) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long windowSize = Math.min(WINDOW_SIZE / chunkSize * chunkSize, count - sent);
+            if (position + sent + windowSize > fileChannel.size()) throw new EOFException("File was truncated");
+            MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position + sent, windowSize);
+            try {
+                while (window.hasRemaining()) {
+                    ByteBuffer chunk = window.duplicate();
+                    chunk.limit(Math.min(window.limit(), window.position() + chunkSize));
+                    frames.writeData(chunk);
+                    window.position(chunk.limit());
+                }
+            } finally {
+                unmap(window);
+            }
+            sent += windowSize;
+            if (progress != null) progress.progress(position + sent, position + count);
+        }
+        return sent;
+    }
+
+    @Override
+    public int receive(ReadableByteChannel source, long position, long limit) throws IOException {
+        long size = Math.min(limit, chunkSize);
+        if (window == null || position < windowStart || position + size > windowStart + window.capacity())
+            remap(position);
+        ByteBuffer chunk = window.duplicate();
+        int offset = (int) (position - windowStart);
+        chunk.position(offset);
+        chunk.limit((int) Math.min(window.capacity(), offset + size));
+        int count = source.read(chunk);
+        if (count > 0 && listener != null) listener.written(position, count);
+        return count;
+    }
+
+    @Override
+    public void await() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (window != null) unmap(window);
+            window = null;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void remap(long position) throws IOException {
+        if (position >= fileSize) throw new EOFException("Write past the end of file");
+        if (window != null) unmap(window);
+        window = null;
+        window = fileChannel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW_SIZE, fileSize - position));
+        windowStart = position;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+class RangeSet {
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    public static RangeSet parse(String text) {
+        RangeSet set = new RangeSet();
+        for (String range : text.split(",")) {
+            range = range.trim();
+            if (range.isEmpty()) continue;
+            int delimiterIndex = range.indexOf("-");
+            set.add(Long.parseLong(range.substring(0, delimiterIndex)), Long.parseLong(range.substring(delimiterIndex + 1)));
+        }
+        return set;
+    }
+
+    public synchronized void add(long start, long end) {
+        if (end <= start) return;
+        Map.Entry<Long, Long> previous = ranges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    public synchronized long contiguousEnd() {
+        Long end = ranges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    public synchronized long total() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) total += range.getValue() - range.getKey();
+        return total;
+    }
+
+    public synchronized boolean covers(long size) {
+        return contiguousEnd() >= size;
+    }
+
+    public synchronized RangeSet missing(long size) {
+        RangeSet missing = new RangeSet();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getKey() >= size) break;
+            missing.add(position, range.getKey());
+            position = Math.max(position, range.getValue());
+        }
+        missing.add(position, size);
+        return missing;
+    }
+
+    public synchronized List<long[]> split(int parts) {
+        List<long[]> result = new ArrayList<>();
+        long total = total();
+        if (total == 0) return result;
+        long share = Math.max(1, (total + parts - 1) / parts);
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            for (long start = range.getKey(); start < range.getValue(); start += share)
+                result.add(new long[]{start, Math.min(range.getValue(), start + share)});
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(range.getKey()).append('-').append(range.getValue());
+        }
+        return builder.toString();
+    }
+}
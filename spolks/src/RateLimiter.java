@@ -0,0 +1,60 @@
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long BURST_NANOS = 50000000L;
+    private static final long IDLE_NANOS = 100000000L;
+
+    private final long bytesPerSecond;
+    private final RateLimiter parent;
+    private final Map<RateLimiter, Long> shares = new HashMap<>();
+    private long due = System.nanoTime();
+    private long nextPrune = due;
+
+    public RateLimiter(long bytesPerSecond, RateLimiter parent) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.parent = parent;
+    }
+
+    public long reserve(long bytes) {
+        long wait = 0;
+        if (bytesPerSecond > 0) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                due = Math.max(due, now) + bytes * NANOS_PER_SECOND / bytesPerSecond;
+                wait = due - now - BURST_NANOS;
+            }
+        }
+        if (parent != null) wait = Math.max(wait, parent.share(this, bytes));
+        return Math.max(0, wait);
+    }
+
+    private synchronized long share(RateLimiter child, long bytes) {
+        long now = System.nanoTime();
+        if (now - nextPrune >= 0) {
+            shares.values().removeIf(childDue -> childDue + IDLE_NANOS - now < 0);
+            nextPrune = now + IDLE_NANOS;
+        }
+        Long previous = shares.get(child);
+        int active = previous == null ? shares.size() + 1 : shares.size();
+        long childDue = Math.max(previous == null ? now : previous, now)
+                + bytes * NANOS_PER_SECOND / bytesPerSecond * active;
+        shares.put(child, childDue);
+        return childDue - now - BURST_NANOS;
+    }
+
+    public void acquire(long bytes) throws InterruptedIOException {
+        long wait = reserve(bytes);
+        if (wait == 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ResumeIndex {
+
+    private static final long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_JOURNAL_RECORDS = 4096;
+    private static final Map<String, ResumeIndex> OPENED = new ConcurrentHashMap<>();
+    private static final ExecutorService FLUSHER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "resume-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File journal;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private Writer writer;
+    private int records = 0;
+
+    static class Entry {
+        private final File file;
+        private final String owner;
+        private final long size;
+        private final RangeSet done;
+        private final AtomicLong unjournaled = new AtomicLong();
+        private final AtomicBoolean flushing = new AtomicBoolean();
+        private volatile String checkpointed = "";
+        private volatile boolean fresh = false;
+
+        private Entry(File file, String owner, long size, RangeSet done) {
+            this.file = file;
+            this.owner = owner;
+            this.size = size;
+            this.done = done;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public RangeSet getDone() {
+            return done;
+        }
+
+        public long getConfirmedOffset() {
+            return done.contiguousEnd();
+        }
+
+        public boolean isComplete() {
+            return done.covers(size);
+        }
+
+        public boolean isFresh() {
+            return fresh;
+        }
+    }
+
+    public ResumeIndex(File journal) {
+        this.journal = journal;
+        if (!journal.exists()) return;
+        try {
+            load();
+            compact();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static ResumeIndex open(File journal) {
+        return OPENED.computeIfAbsent(journal.getAbsolutePath(), path -> new ResumeIndex(journal));
+    }
+
+    public Entry get(File file) {
+        return entries.get(keyOf(file));
+    }
+
+    public static void presize(File file, long size) throws IOException {
+        try (RandomAccessFile presized = new RandomAccessFile(file, "rw")) {
+            presized.setLength(size);
+        }
+    }
+
+    public Entry begin(File file, String owner, long size) throws IOException {
+        presize(file, size);
+        Entry entry = new Entry(file, owner, size, new RangeSet());
+        entry.fresh = true;
+        synchronized (this) {
+            entries.put(keyOf(file), entry);
+            append("B " + keyOf(file) + "\t" + owner + "\t" + size + "\t" + file.getPath());
+        }
+        return entry;
+    }
+
+    public void confirm(Entry entry, long position, int count) {
+        entry.done.add(position, position + count);
+        if (entry.unjournaled.addAndGet(count) >= CHECKPOINT_BYTES) checkpointLater(entry);
+    }
+
+    public void checkpointLater(Entry entry) {
+        if (!entry.flushing.compareAndSet(false, true)) return;
+        FLUSHER.execute(() -> {
+            entry.flushing.set(false);
+            checkpoint(entry);
+        });
+    }
+
+    public void interrupt(Entry entry) {
+        entry.fresh = false;
+    }
+
+    public void checkpoint(Entry entry) {
+        entry.unjournaled.set(0);
+        if (entries.get(keyOf(entry.file)) != entry) return;
+        String done = entry.done.toString();
+        try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            if (entries.get(keyOf(entry.file)) != entry) return;
+            entry.checkpointed = done;
+            append("C " + keyOf(entry.file) + "\t" + done);
+        }
+    }
+
+    public synchronized boolean remove(Entry entry) {
+        if (!entries.remove(keyOf(entry.file), entry)) return false;
+        append("R " + keyOf(entry.file));
+        return true;
+    }
+
+    private static String keyOf(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private synchronized void append(String record) {
+        try {
+            if (records >= MAX_JOURNAL_RECORDS) compact();
+            if (writer == null) writer = new BufferedWriter(new FileWriter(journal, true));
+            writer.write(record);
+            writer.write('\n');
+            writer.flush();
+            records++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!journal.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(journal))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2) continue;
+                String[] fields = line.substring(2).split("\t");
+                switch (line.charAt(0)) {
+                    case 'B':
+                        if (fields.length < 4) break;
+                        entries.put(fields[0], new Entry(new File(fields[3]), fields[1],
+                                Long.parseLong(fields[2]), new RangeSet()));
+                        break;
+                    case 'C':
+                        Entry entry = entries.get(fields[0]);
+                        if (entry == null) break;
+                        String done = fields.length > 1 ? fields[1] : "";
+                        entry = new Entry(entry.file, entry.owner, entry.size, RangeSet.parse(done));
+                        entry.checkpointed = done;
+                        entries.put(fields[0], entry);
+                        break;
+                    case 'R':
+                        entries.remove(fields[0]);
+                        break;
+                }
+            }
+        }
+        for (Map.Entry<String, Entry> entry : entries.entrySet())
+            if (!entry.getValue().file.exists()) entries.remove(entry.getKey());
+    }
+
+    private synchronized void compact() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        File snapshot = new File(journal.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new FileWriter(snapshot))) {
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                out.write("B " + item.getKey() + "\t" + entry.owner + "\t" + entry.size + "\t" + entry.file.getPath() + "\n");
+                out.write("C " + item.getKey() + "\t" + entry.checkpointed + "\n");
+            }
+        }
+        Files.move(snapshot.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        records = entries.size() * 2;
+    }
+}
@@ -1,118 +1,345 @@
-import javafx.util.Pair;
-
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
 public class Server {
 
 
     private static final int SERVER_PORT = 1337;
+    private static final int BUFFER_SIZE = 64 * 1024;
     private static final int THREAD_COUNT = 2;
+    private static final int MAX_CONNECTIONS = 10000;
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final int SUMMARY_INTERVAL_SECONDS = 10;
+    private static final int EVENT_LOOP_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int DISK_THREAD_COUNT = 4;
+    private static final String RESUME_JOURNAL = "server.resume";
+    private static final long CACHE_CAPACITY = 256L * 1024 * 1024;
+    private static final long MAX_CACHED_FILE_SIZE = 16L * 1024 * 1024;
+    private static final long MAX_PROBE_SIZE = 1024L * 1024 * 1024;
+    private static final ByteBuffer PROBE_BLOCK = newProbeBlock();
+    private final Config config;
+    private final int bufferSize;
+    private final long connectionRateLimit;
     private ServerSocket server;
-    private List<ConnectionThread> connections = new ArrayList<>();
-    private List<Pair<File, String>> underUploadedFiles = new ArrayList<>();
+    private ServerSocketChannel serverChannel;
+    private ExecutorService sessions;
+    private ExecutorService disk;
+    private Semaphore connectionPermits;
+    private Set<ConnectionThread> connections = ConcurrentHashMap.newKeySet();
+    private List<EventLoop> eventLoops = new ArrayList<>();
+    private ResumeIndex resumeIndex = new ResumeIndex(new File(RESUME_JOURNAL));
+    private TransferMetrics metrics = new TransferMetrics();
+    private FileCache cache;
+    private RateLimiter rateLimiter;
+    private volatile boolean closing = false;
+
+    public enum Mode { BLOCKING, NON_BLOCKING, VIRTUAL_THREADS }
 
     public Server() {
+        this(Mode.BLOCKING);
+    }
+
+    public Server(Mode mode) {
+        this(mode, new Config());
+    }
+
+    public Server(Mode mode, Config config) {
+        this.config = config;
+        bufferSize = config.getInt("bufferSize", BUFFER_SIZE);
+        if (bufferSize < 1024 || bufferSize > FrameChannel.MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("Bad buffer size " + bufferSize);
+        connectionPermits = new Semaphore(config.getInt("maxConnections", MAX_CONNECTIONS));
+        cache = new FileCache(config.getLong("cacheCapacity", CACHE_CAPACITY),
+                config.getLong("maxCachedFileSize", MAX_CACHED_FILE_SIZE), metrics);
+        long rateLimit = config.getLong("rateLimit", 0);
+        if (rateLimit > 0) rateLimiter = new RateLimiter(rateLimit, null);
+        connectionRateLimit = config.getLong("connectionRateLimit", 0);
+        InetSocketAddress address = new InetSocketAddress(config.getInt("port", SERVER_PORT));
+        int backlog = config.getInt("backlog", ACCEPT_BACKLOG);
         try {
-            server = new ServerSocket(SERVER_PORT);
-            for(int i = 0; i < THREAD_COUNT; i++) {
-                ConnectionThread thread = new ConnectionThread(this);
-                connections.add(thread);
-                new Thread(thread).start();
+            if (mode == Mode.NON_BLOCKING) {
+                serverChannel = ServerSocketChannel.open();
+                config.configure(serverChannel.socket());
+                serverChannel.bind(address, backlog);
+                disk = Executors.newFixedThreadPool(config.getInt("diskThreads", DISK_THREAD_COUNT));
+                int loops = config.getInt("eventLoops", EVENT_LOOP_COUNT);
+                for (int i = 0; i < loops; i++) {
+                    EventLoop loop = new EventLoop(this);
+                    eventLoops.add(loop);
+                    new Thread(loop, "event-loop-" + i).start();
+                }
+            } else {
+                server = ServerSocketChannel.open().socket();
+                config.configure(server);
+                server.bind(address, backlog);
+                sessions = mode == Mode.VIRTUAL_THREADS ? newVirtualThreadExecutor()
+                        : Executors.newFixedThreadPool(config.getInt("threads", THREAD_COUNT));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "server-shutdown"));
     }
 
     public void listen() {
+        metrics.register("Server");
+        metrics.startSummary(SUMMARY_INTERVAL_SECONDS);
+        if (serverChannel != null) {
+            System.out.println("Server started (" + eventLoops.size() + " event loops)");
+            int next = 0;
+            while (!closing) {
+                try {
+                    connectionPermits.acquire();
+                    SocketChannel channel = serverChannel.accept();
+                    eventLoops.get(next++ % eventLoops.size()).register(channel);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    if (!closing) e.printStackTrace();
+                }
+            }
+        }
         if (server != null) {
             System.out.println("Server started");
-            while (true) {
+            while (!closing) {
+                Socket connection = null;
                 try {
-                    for(ConnectionThread connection : connections)
-                        if (!connection.isWorked()) connection.startWork(server.accept());
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    connectionPermits.acquire();
+                    connection = server.accept();
+                    ConnectionThread session = new ConnectionThread(this, connection);
+                    connections.add(session);
+                    sessions.execute(session);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException | RejectedExecutionException e) {
+                    connectionPermits.release();
+                    if (connection != null) try {
+                        connection.close();
+                    } catch (IOException ignored) {
+                    }
+                    if (!closing) e.printStackTrace();
                 }
             }
         }
     }
 
-    private Pair<File, String> findUnderUploadedFileBy(String name) {
-        for (Pair<File, String> underUploadedFile : underUploadedFiles)
-            if (name.toUpperCase().equals(underUploadedFile.getKey().getName().toUpperCase())) return underUploadedFile;
-        return null;
+    public void shutdown() {
+        if (closing) return;
+        closing = true;
+        try {
+            if (server != null) server.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.close();
+        for (EventLoop loop : eventLoops) loop.stop();
+        if (disk != null) disk.shutdown();
+        if (sessions == null) return;
+        System.out.println("Shutting down, waiting for " + connections.size() + " sessions");
+        for (ConnectionThread connection : connections) connection.closeIfIdle();
+        sessions.shutdown();
+        try {
+            if (!sessions.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                for (ConnectionThread connection : connections) connection.close();
+                sessions.shutdownNow();
+                sessions.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21, running on " + System.getProperty("java.version")
+                    + ": falling back to a cached thread pool with one platform thread per connection");
+            return Executors.newCachedThreadPool();
+        }
     }
 
-    private static class ConnectionThread implements Runnable {
+    private synchronized ResumeIndex.Entry beginUpload(File file, long fileSize, String address) throws IOException {
+        String owner = ipOf(address);
+        ResumeIndex.Entry entry = resumeIndex.get(file);
+        if (entry == null && file.exists()) return null;
+        if (entry != null && (!entry.getOwner().equals(owner) || entry.getSize() != fileSize || !file.exists())) {
+            resumeIndex.remove(entry);
+            file.delete();
+            entry = null;
+        }
+        if (entry == null) {
+            entry = resumeIndex.begin(file, owner, fileSize);
+        }
+        return entry;
+    }
 
-        private static final int BUFFER_SIZE = 64 * 1024;
+    private synchronized boolean delete(File file) {
+        return !isUploading(file) && file.isFile() && file.delete();
+    }
 
-        private volatile boolean isWorked = false;
-        private Server server;
-        private Socket connection;
-        private InputStream input;
-        private OutputStream output;
+    private RateLimiter newConnectionLimiter() {
+        if (connectionRateLimit <= 0 && rateLimiter == null) return null;
+        return new RateLimiter(connectionRateLimit, rateLimiter);
+    }
 
-        public ConnectionThread(Server server) {
-            this.server = server;
-        }
+    private static ByteBuffer newProbeBlock() {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        new Random().nextBytes(bytes);
+        ByteBuffer block = ByteBuffer.allocateDirect(bytes.length);
+        block.put(bytes);
+        block.flip();
+        return block.asReadOnlyBuffer();
+    }
 
-        public void startWork(Socket connection) throws IOException {
-            synchronized (this) {
-                if (isWorked) return;
-                isWorked = true;
-                this.connection = connection;
-                input = connection.getInputStream();
-                output = connection.getOutputStream();
-                System.out.println(connection.getRemoteSocketAddress() + " connected");
+    private List<File> listFiles(String argument) throws IOException {
+        Set<File> files = new LinkedHashSet<>();
+        for (String name : argument.split("\\|")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            File file = new File(name);
+            if (file.isFile()) {
+                if (!isUploading(file)) files.add(file);
+                continue;
             }
+            List<File> matches = new ArrayList<>();
+            Path directory = file.getParentFile() == null ? Paths.get("") : file.getParentFile().toPath();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, file.getName())) {
+                for (Path path : stream)
+                    if (Files.isRegularFile(path) && !isUploading(path.toFile())) matches.add(path.toFile());
+            } catch (NoSuchFileException | PatternSyntaxException ignored) {
+            }
+            Collections.sort(matches);
+            files.addAll(matches);
         }
+        return new ArrayList<>(files);
+    }
+
+    private boolean isUploading(File file) {
+        return resumeIndex.get(file) != null;
+    }
+
+    private static String ipOf(String address) {
+        return address.substring(0, address.indexOf(":"));
+    }
+
+    private static String currentTime() {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        return dateFormat.format(new Date());
+    }
 
-        public boolean isWorked() {
-            return isWorked;
+    private static class ConnectionThread implements Runnable {
+
+        private static final int WRITE_QUEUE_DEPTH = 8;
+
+        private final Server server;
+        private final Socket connection;
+        private FrameChannel frames;
+        private boolean busy = false;
+        private long bytesIn = 0;
+        private long bytesOut = 0;
+        private boolean mapped = false;
+
+        public ConnectionThread(Server server, Socket connection) {
+            this.server = server;
+            this.connection = connection;
         }
 
         @Override
         public void run() {
+            server.metrics.sessionOpened();
+            try {
+                server.config.configure(connection);
+                frames = new FrameChannel(connection, server.bufferSize);
+                frames.setLimiter(server.newConnectionLimiter());
+                ConsoleLog.println(connection.getRemoteSocketAddress() + " connected");
+                serve();
+            } catch (IOException ignored) {
+            } finally {
+                close();
+                disconnect();
+            }
+        }
+
+        private void serve() throws IOException {
+            send("Connected to " + connection.getLocalSocketAddress());
             while (true) {
-                synchronized (this) {
-                    if (isWorked) {
-                        try {
-                            send("Connected to " + connection.getLocalSocketAddress());
-                            BufferedReader inputReader = new BufferedReader(new InputStreamReader(input));
-                            while (true) {
-                                String line = inputReader.readLine();
-                                if (line == null) break;
-                                System.out.println(connection.getRemoteSocketAddress() + " >>> " + line);
-                                process(line);
-                            }
-                        } catch (IOException ignored) {
-                        } finally {
-                            if (!connection.isClosed()) try {
-                                connection.close();
-                            } catch (IOException ignored) {
-                            }
-                            disconnect();
-                        }
-                    }
+                String line = frames.readMessage();
+                if (line == null || !begin()) break;
+                ConsoleLog.println(connection.getRemoteSocketAddress() + " >>> " + line);
+                try {
+                    process(line);
+                } finally {
+                    if (!end()) break;
                 }
             }
         }
 
+        private synchronized boolean begin() {
+            if (server.closing) return false;
+            busy = true;
+            return true;
+        }
+
+        private synchronized boolean end() {
+            busy = false;
+            return !server.closing;
+        }
+
+        public synchronized void closeIfIdle() {
+            if (!busy) close();
+        }
+
+        public void close() {
+            if (!connection.isClosed()) try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+
         private void process(String line) throws IOException {
             line = line.trim();
             int delimiterIndex = line.indexOf(" ");
@@ -126,6 +353,9 @@ public class Server {
                 case "time":
                     time();
                     break;
+                case "stats":
+                    send("Stats|" + server.metrics.getResourceUsage());
+                    break;
                 case "close":
                     connection.close();
                     break;
@@ -135,132 +365,949 @@ public class Server {
                 case "download":
                     download(argument);
                     break;
+                case "fetch":
+                    fetch(argument);
+                    break;
+                case "bulk":
+                    bulk(argument);
+                    break;
+                case "ranges":
+                    ranges(argument);
+                    break;
+                case "store":
+                    store(argument);
+                    break;
+                case "protocol":
+                    protocol(argument);
+                    break;
+                case "io":
+                    io(argument);
+                    break;
+                case "compress":
+                    compress(argument);
+                    break;
+                case "probe":
+                    probe(argument);
+                    break;
+                case "sync":
+                    sync(argument);
+                    break;
+                case "delete":
+                    delete(argument);
+                    break;
                 default:
-                    send("Wtf is " + command + "?");
+                    sendError("Wtf is " + command + "?");
             }
         }
 
+        private void delete(String fileName) throws IOException {
+            File file = new File("server " + fileName);
+            if (server.delete(file)) send("File " + file.getName() + " was deleted");
+            else sendError("No file");
+        }
+
+        private void protocol(String argument) throws IOException {
+            if (frames.isBinary() || !argument.equalsIgnoreCase("binary")) {
+                sendError("Unknown protocol " + argument);
+                return;
+            }
+            send(FrameChannel.BINARY_PROTOCOL);
+            frames.setBinary(true);
+        }
+
+        private void io(String argument) throws IOException {
+            if (argument.equalsIgnoreCase("mapped")) {
+                mapped = true;
+            } else if (argument.equalsIgnoreCase("channel")) {
+                mapped = false;
+            } else {
+                sendError("Unknown I/O mode " + argument);
+                return;
+            }
+            send("I/O " + argument.toLowerCase());
+        }
+
+        private void compress(String argument) throws IOException {
+            if (!frames.isBinary()) {
+                sendError("Compression needs the binary protocol");
+            } else if (argument.equalsIgnoreCase(FrameChannel.DEFLATE) || argument.equalsIgnoreCase("off")) {
+                send("compress " + argument.toLowerCase());
+                frames.setCompressing(!argument.equalsIgnoreCase("off"));
+            } else {
+                sendError("Unknown compression " + argument);
+            }
+        }
+
+        private void probe(String argument) throws IOException {
+            long count = Math.min(Long.parseLong(argument), MAX_PROBE_SIZE);
+            send("Probe|" + count);
+            long sentBytes = 0;
+            while (sentBytes < count) {
+                ByteBuffer chunk = PROBE_BLOCK.duplicate();
+                chunk.limit((int) Math.min(chunk.capacity(), count - sentBytes));
+                sentBytes += chunk.remaining();
+                frames.writeData(chunk);
+            }
+            frames.endData();
+            bytesOut += count;
+        }
+
         private void time() throws IOException {
-            DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-            Date date = new Date();
-            send(dateFormat.format(date));
+            send(currentTime());
         }
 
         private void preupload(String argument) throws IOException {
             String fileName = argument.substring(0, argument.indexOf("|"));
             long fileSize = Long.parseLong(argument.substring(argument.indexOf("|") + 1));
             File file = new File("server " + fileName);
-            if (!file.exists()) upload(file, 0, fileSize);
-            else {
-                Pair<File, String> desiredFile = server.findUnderUploadedFileBy(file.getName());
-                if (desiredFile != null) {
-                    String desiredFileIP = desiredFile.getValue().substring(0, desiredFile.getValue().indexOf(":"));
-                    String currentClientIP = connection.getRemoteSocketAddress().toString()
-                            .substring(0, connection.getRemoteSocketAddress().toString().indexOf(":"));
-                    if (!desiredFileIP.equals(currentClientIP)) {
-                        file.delete();
-                        server.underUploadedFiles.remove(desiredFile);
-                        upload(file, 0, fileSize);
-                    } else {
-                        upload(file, file.length(), fileSize);
+            ResumeIndex.Entry entry = server.beginUpload(file, fileSize, connection.getRemoteSocketAddress().toString());
+            if (entry == null) {
+                frames.writeNumber(-1);
+                sendError("File exists");
+                return;
+            }
+            upload(entry);
+        }
+
+        private void sync(String argument) throws IOException {
+            String fileName = argument.substring(0, argument.lastIndexOf("|"));
+            long fileSize = Long.parseLong(argument.substring(argument.lastIndexOf("|") + 1));
+            File file = new File("server " + fileName);
+            if (server.resumeIndex.get(file) != null) {
+                sendError("File is being uploaded");
+                return;
+            }
+            long started = System.nanoTime();
+            try (FileChannel old = file.exists() ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null) {
+                long oldSize = old == null ? 0 : old.size();
+                int blockSize = DeltaSync.blockSize(Math.max(oldSize, fileSize));
+                send("Signatures|" + blockSize + "|" + DeltaSync.blockCount(oldSize, blockSize) + "|" + oldSize);
+                if (old != null) {
+                    long count = DeltaSync.writeSignatures(old, oldSize, blockSize, frames, server.bufferSize);
+                    bytesOut += count;
+                    server.metrics.sent(count);
+                }
+                frames.endData();
+                File temp = File.createTempFile("sync", ".tmp", file.getAbsoluteFile().getParentFile());
+                try {
+                    DeltaSync.Stats stats;
+                    try (FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                        stats = DeltaSync.applyDelta(frames, old, oldSize, blockSize, target, server.bufferSize);
                     }
-                } else {
-                    sendQuiet("-1");
-                    send("File exists");
+                    frames.finishData();
+                    bytesIn += stats.getWire();
+                    if (!stats.isVerified()) {
+                        sendError("Sync checksum mismatch");
+                        return;
+                    }
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    server.metrics.transferCompleted(fileSize, System.nanoTime() - started);
+                    send(FrameChannel.ACK, "File " + file.getName() + " was synced: " + stats.getMatched()
+                            + " bytes matched, " + stats.getLiteral() + " bytes sent");
+                } finally {
+                    temp.delete();
                 }
             }
         }
 
-        private void upload(File file, long offset, long fileSize) throws IOException {
-            if (!file.exists()) {
-                file.createNewFile();
-                server.underUploadedFiles.add(new Pair<>(file, connection.getRemoteSocketAddress().toString()));
-            }
-            AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(
-                    Paths.get(file.getPath()), StandardOpenOption.WRITE);
-            List<Future> operations = new ArrayList<>();
+        private void upload(ResumeIndex.Entry entry) throws IOException {
             Date startTime = new Date();
-            long initOffset = offset;
-            sendQuiet(String.valueOf(offset));
-            while (true) {
-                if (offset >= fileSize) {
-                    Pair<File, String> desiredFile = server.findUnderUploadedFileBy(file.getName());
-                    if (desiredFile != null) {
-                        String desiredFileIP = desiredFile.getValue().substring(0, desiredFile.getValue().indexOf(":"));
-                        String currentClientIP = connection.getRemoteSocketAddress().toString()
-                                .substring(0, connection.getRemoteSocketAddress().toString().indexOf(":"));
-                        if (desiredFileIP.equals(currentClientIP)) {
-                            server.underUploadedFiles.remove(desiredFile);
-                            Date endTime = new Date();
-                            double timeInSecs = (double)(endTime.getTime() - startTime.getTime()) / 1000D;
-                            double mBits = (double)((fileSize - initOffset) * 8) / 1000000D;
-                            double speed = timeInSecs == 0 ? Double.MAX_VALUE : mBits / timeInSecs;
-                            send("File " + file.getName() + " was successfully uploaded. Total speed: "
-                                    + speed + " Mbits");
-                            while (true) {
-                                boolean easyEnd = true;
-                                for (Future operation : operations) if (!operation.isDone()) easyEnd = false;
-                                if (easyEnd) break;
-                            }
-                            fileChannel.close();
-                            break;
+            long started = System.nanoTime();
+            long initOffset = entry.getConfirmedOffset();
+            if (initOffset > 0) server.metrics.resumed();
+            receive(entry, initOffset, entry.getSize(), true);
+            server.resumeIndex.remove(entry);
+            server.metrics.transferCompleted(entry.getSize() - initOffset, System.nanoTime() - started);
+            Date endTime = new Date();
+            double timeInSecs = (double)(endTime.getTime() - startTime.getTime()) / 1000D;
+            double mBits = (double)((entry.getSize() - initOffset) * 8) / 1000000D;
+            double speed = timeInSecs == 0 ? Double.MAX_VALUE : mBits / timeInSecs;
+            send(FrameChannel.ACK, "File " + entry.getFile().getName() + " was successfully uploaded. Total speed: "
+                    + speed + " Mbits");
+        }
+
+        private void receive(final ResumeIndex.Entry entry, long offset, long end, boolean progress) throws IOException {
+            FileSink.Listener confirm = (position, count) -> server.resumeIndex.confirm(entry, position, count);
+            try (FileSink pipeline = mapped ? new MappedFile(entry.getFile(), entry.getSize(), server.bufferSize, confirm)
+                    : new WritePipeline(entry.getFile(), WRITE_QUEUE_DEPTH, server.bufferSize, confirm,
+                    entry.isFresh())) {
+                TransferMetrics.Progress report = progress ? new TransferMetrics.Progress(
+                        connection.getRemoteSocketAddress() + " >>> " + entry.getFile().getName(), end) : null;
+                frames.writeNumber(offset);
+                while (offset < end) {
+                    long started = System.nanoTime();
+                    int count = pipeline.receive(frames, offset, end - offset);
+                    if (count == -1) throw new EOFException();
+                    server.metrics.received(count, System.nanoTime() - started);
+                    bytesIn += count;
+                    offset += count;
+                    if (report != null) report.update(offset);
+                }
+                frames.finishData();
+                pipeline.await();
+            } catch (IOException | RuntimeException e) {
+                server.resumeIndex.interrupt(entry);
+                throw e;
+            } finally {
+                server.resumeIndex.checkpoint(entry);
+            }
+        }
+
+        private void download(String filename) throws IOException {
+            File file = new File(filename);
+            if (!file.exists() || server.isUploading(file)) {
+                sendError("No file");
+                return;
+            }
+            ByteBuffer cached = server.cache.get(file);
+            long fileSize = cached == null ? file.length() : cached.capacity();
+            send("File was found|" + fileSize);
+            long uploadedBytes = frames.readNumber();
+            if (uploadedBytes > 0) server.metrics.resumed();
+            long started = System.nanoTime();
+            long sentBytes = send(file, cached, uploadedBytes, Math.max(0, fileSize - uploadedBytes));
+            frames.endData();
+            sent(sentBytes, started);
+            ConsoleLog.println(connection.getRemoteSocketAddress() + " <<< byte[" + sentBytes + "]");
+        }
+
+        private void fetch(String argument) throws IOException {
+            String[] parts = argument.split("\\|");
+            File file = new File(parts[0]);
+            if (!file.exists() || server.isUploading(file)) {
+                sendError("No file");
+                return;
+            }
+            ByteBuffer cached = server.cache.get(file);
+            long fileSize = cached == null ? file.length() : cached.capacity();
+            long start = Math.min(Long.parseLong(parts[1]), fileSize);
+            long end = Math.min(Long.parseLong(parts[2]), fileSize);
+            send("File was found|" + fileSize);
+            long started = System.nanoTime();
+            long sentBytes = send(file, cached, start, Math.max(0, end - start));
+            frames.endData();
+            if (sentBytes > 0) sent(sentBytes, started);
+            ConsoleLog.println(connection.getRemoteSocketAddress() + " <<< byte[" + sentBytes + "] from " + start);
+        }
+
+        private void bulk(String argument) throws IOException {
+            List<File> files = server.listFiles(argument);
+            if (files.isEmpty()) {
+                sendError("No file");
+                return;
+            }
+            long started = System.nanoTime();
+            long sentBytes = 0;
+            for (File file : files) {
+                ByteBuffer cached = server.cache.get(file);
+                long fileSize = cached == null ? file.length() : cached.capacity();
+                frames.writeMessage(FrameChannel.META, "Bulk file|" + fileSize + "|" + file.getName());
+                sentBytes += send(file, cached, 0, fileSize);
+                frames.endData();
+            }
+            sent(sentBytes, started);
+            ConsoleLog.println(connection.getRemoteSocketAddress() + " <<< " + files.size() + " files, byte["
+                    + sentBytes + "]");
+            send("Bulk done|" + files.size());
+        }
+
+        private void ranges(String argument) throws IOException {
+            String fileName = argument.substring(0, argument.lastIndexOf("|"));
+            long fileSize = Long.parseLong(argument.substring(argument.lastIndexOf("|") + 1));
+            File file = new File("server " + fileName);
+            ResumeIndex.Entry entry = server.beginUpload(file, fileSize, connection.getRemoteSocketAddress().toString());
+            if (entry == null) {
+                sendError("File exists");
+                return;
+            }
+            send(entry.getDone().missing(fileSize).toString());
+            if (entry.isComplete()) server.resumeIndex.remove(entry);
+        }
+
+        private void store(String argument) throws IOException {
+            String[] parts = argument.split("\\|");
+            File file = new File("server " + parts[0]);
+            long fileSize = Long.parseLong(parts[1]);
+            long start = Long.parseLong(parts[2]);
+            long end = Long.parseLong(parts[3]);
+            ResumeIndex.Entry entry = server.resumeIndex.get(file);
+            if (entry == null || entry.getSize() != fileSize || start < 0 || start > end || end > fileSize
+                    || !entry.getOwner().equals(ipOf(connection.getRemoteSocketAddress().toString()))) {
+                frames.writeNumber(-1);
+                sendError("Unknown upload");
+                return;
+            }
+            long started = System.nanoTime();
+            receive(entry, start, end, false);
+            server.metrics.transferCompleted(end - start, System.nanoTime() - started);
+            send(FrameChannel.ACK, "Range " + start + "-" + end + " stored");
+            if (entry.isComplete() && server.resumeIndex.remove(entry))
+                ConsoleLog.println("File " + file.getName() + " was successfully uploaded");
+        }
+
+        private void send(String data) throws IOException {
+            send(FrameChannel.META, data);
+        }
+
+        private void sendError(String data) throws IOException {
+            send(FrameChannel.ERROR, data);
+        }
+
+        private void send(byte type, String data) throws IOException {
+            frames.writeMessage(type, data);
+            ConsoleLog.println(connection.getRemoteSocketAddress() + " <<< " + data);
+        }
+
+        private long send(File file, ByteBuffer cached, long position, long count) throws IOException {
+            if (count <= 0) return 0;
+            if (cached != null) return send(cached, position, count);
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return send(fileChannel, position, count);
+            }
+        }
+
+        private long send(ByteBuffer cached, long position, long count) throws IOException {
+            cached.limit((int) (position + count));
+            cached.position((int) position);
+            while (cached.hasRemaining()) {
+                ByteBuffer chunk = cached.duplicate();
+                chunk.limit(Math.min(cached.limit(), cached.position() + server.bufferSize));
+                frames.writeData(chunk);
+                cached.position(chunk.limit());
+            }
+            return count;
+        }
+
+        private long send(FileChannel fileChannel, long position, long count) throws IOException {
+            if (mapped) return MappedFile.send(fileChannel, position, count, server.bufferSize, frames, null);
+            return frames.transferFrom(fileChannel, position, count);
+        }
+
+        private void sent(long count, long started) {
+            bytesOut += count;
+            server.metrics.sent(count);
+            server.metrics.transferCompleted(count, System.nanoTime() - started);
+        }
+
+        private void disconnect() {
+            server.connections.remove(this);
+            server.connectionPermits.release();
+            server.metrics.sessionClosed();
+            ConsoleLog.println(connection.getRemoteSocketAddress() + " disconnected (in " + bytesIn
+                    + " bytes, out " + bytesOut + " bytes)");
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+
+        private final Server server;
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Session> completions = new ConcurrentLinkedQueue<>();
+        private final Queue<Session> throttled = new PriorityQueue<>(Comparator.comparingLong(session -> session.resumeAt));
+        private volatile boolean running = true;
+
+        public EventLoop(Server server) throws IOException {
+            this.server = server;
+            selector = Selector.open();
+        }
+
+        public void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        public void complete(Session session) {
+            completions.add(session);
+            selector.wakeup();
+        }
+
+        public void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void park(Session session) {
+            throttled.add(session);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Session next = throttled.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long wait = (next.resumeAt - System.nanoTime()) / 1000000;
+                        if (wait > 0) selector.select(wait);
+                        else selector.selectNow();
+                    }
+                    registerPending();
+                    completePending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isReadable()) session.read();
+                            if (key.isValid() && key.isWritable()) session.write();
+                        } catch (IOException | RuntimeException e) {
+                            session.close();
+                        } catch (Error e) {
+                            e.printStackTrace();
+                            session.close();
                         }
                     }
+                    resumeThrottled();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (SelectionKey key : new ArrayList<>(selector.keys())) ((Session) key.attachment()).close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void resumeThrottled() {
+            long now = System.nanoTime();
+            while (!throttled.isEmpty() && throttled.peek().resumeAt - now <= 0) {
+                Session session = throttled.poll();
+                try {
+                    session.resume();
+                } catch (IOException | RuntimeException e) {
+                    session.close();
+                } catch (Error e) {
+                    e.printStackTrace();
+                    session.close();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = registrations.poll()) != null) {
+                Session session = new Session(server, this, channel);
+                try {
+                    channel.configureBlocking(false);
+                    session.open(channel.register(selector, SelectionKey.OP_READ, session));
+                } catch (IOException e) {
+                    session.close();
                 }
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int count = input.read(buffer);
-                operations.add(fileChannel.write(ByteBuffer.wrap(Arrays.copyOfRange(buffer, 0, count)), offset));
-                offset += count;
-                System.out.println(connection.getRemoteSocketAddress() + " >>> byte[" + count + "] "
-                        + ((double)offset / (double)fileSize) * 100 + "%");
             }
         }
 
+        private void completePending() {
+            Session session;
+            while ((session = completions.poll()) != null) {
+                try {
+                    session.written();
+                } catch (IOException | RuntimeException e) {
+                    session.close();
+                } catch (Error e) {
+                    e.printStackTrace();
+                    session.close();
+                }
+            }
+        }
+    }
+
+    private static class Session {
+
+        private static final int MAX_CHUNKS_PER_WRITE = 16;
+        private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+        private enum State { COMMAND, UPLOAD, DOWNLOAD_OFFSET, DOWNLOAD }
+
+        private final Server server;
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final RateLimiter limiter;
+        private final ByteBuffer input;
+        private final Deque<ByteBuffer> output = new ArrayDeque<>();
+        private final ByteBuffer pending;
+        private final Deque<File> bulk = new ArrayDeque<>();
+        private SelectionKey key;
+        private String address;
+        private State state = State.COMMAND;
+        private boolean closed = false;
+        private boolean parsing = false;
+        private boolean writing = false;
+        private IOException writeFailure;
+        private long queuedBytes = 0;
+        private long resumeAt = 0;
+        private File file;
+        private ResumeIndex.Entry entry;
+        private boolean range;
+        private boolean sparse;
+        private FileChannel fileChannel;
+        private ByteBuffer cached;
+        private long offset;
+        private long initOffset;
+        private long fileSize;
+        private int bulkFiles = 0;
+        private Date startTime;
+        private long started;
+        private long writeStarted;
+        private long bytesIn = 0;
+        private long bytesOut = 0;
+        private TransferMetrics.Progress progress;
+
+        public Session(Server server, EventLoop loop, SocketChannel channel) {
+            this.server = server;
+            this.loop = loop;
+            this.channel = channel;
+            limiter = server.newConnectionLimiter();
+            input = ByteBuffer.allocateDirect(server.bufferSize);
+            pending = ByteBuffer.allocateDirect(server.bufferSize);
+        }
+
+        public void open(SelectionKey key) throws IOException {
+            this.key = key;
+            address = channel.socket().getRemoteSocketAddress().toString();
+            server.config.configure(channel.socket());
+            server.metrics.sessionOpened();
+            ConsoleLog.println(address + " connected");
+            send("Connected to " + channel.socket().getLocalSocketAddress());
+        }
+
+        public void read() throws IOException {
+            int count = channel.read(input);
+            if (count == -1) {
+                close();
+                return;
+            }
+            parse();
+        }
+
+        public void write() throws IOException {
+            if (flush() && state == State.DOWNLOAD && resumeAt == 0) transfer();
+            updateInterest();
+            if (!paused() && input.position() > 0) parse();
+        }
+
+        public void resume() throws IOException {
+            resumeAt = 0;
+            if (!closed) write();
+        }
+
+        private boolean throttle(long count) {
+            if (limiter == null) return false;
+            long wait = limiter.reserve(count);
+            if (wait == 0) return false;
+            resumeAt = System.nanoTime() + wait;
+            loop.park(this);
+            return true;
+        }
+
+        private boolean flush() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer buffer = output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) return false;
+                queuedBytes -= buffer.capacity();
+                output.poll();
+            }
+            return true;
+        }
+
+        private void parse() throws IOException {
+            if (parsing) return;
+            parsing = true;
+            input.flip();
+            try {
+                while (!closed && !paused() && input.hasRemaining()) {
+                    if (state == State.UPLOAD) {
+                        receive();
+                        continue;
+                    }
+                    String line = nextLine();
+                    if (line == null) break;
+                    if (state == State.DOWNLOAD_OFFSET) {
+                        startDownload(Long.parseLong(line.trim()));
+                    } else {
+                        ConsoleLog.println(address + " >>> " + line);
+                        process(line);
+                    }
+                }
+            } finally {
+                parsing = false;
+            }
+            if (closed) return;
+            input.compact();
+            if (!paused() && !input.hasRemaining()) throw new IOException("Line is too long");
+        }
+
+        private boolean paused() {
+            return state == State.DOWNLOAD || resumeAt != 0 || writing || queuedBytes > MAX_QUEUED_BYTES;
+        }
+
+        private String nextLine() {
+            for (int i = input.position(); i < input.limit(); i++) {
+                if (input.get(i) != '\n') continue;
+                byte[] bytes = new byte[i - input.position()];
+                input.get(bytes);
+                input.get();
+                int length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') length--;
+                return new String(bytes, 0, length);
+            }
+            return null;
+        }
+
+        private void process(String line) throws IOException {
+            line = line.trim();
+            int delimiterIndex = line.indexOf(" ");
+            String command = delimiterIndex == -1 ? line.toLowerCase()
+                    : line.toLowerCase().substring(0, delimiterIndex).trim();
+            String argument = delimiterIndex == -1 ? "" : line.substring(delimiterIndex).trim();
+            switch (command) {
+                case "echo":
+                    send(argument);
+                    break;
+                case "time":
+                    send(currentTime());
+                    break;
+                case "stats":
+                    send("Stats|" + server.metrics.getResourceUsage());
+                    break;
+                case "close":
+                    close();
+                    break;
+                case "upload":
+                    preupload(argument);
+                    break;
+                case "download":
+                    download(argument);
+                    break;
+                case "fetch":
+                    fetch(argument);
+                    break;
+                case "bulk":
+                    bulk(argument);
+                    break;
+                case "ranges":
+                    ranges(argument);
+                    break;
+                case "store":
+                    store(argument);
+                    break;
+                case "probe":
+                    probe(argument);
+                    break;
+                case "delete":
+                    delete(argument);
+                    break;
+                case "protocol":
+                case "io":
+                case "compress":
+                case "sync":
+                    send("The non-blocking server only speaks the text protocol and does not support " + command);
+                    break;
+                default:
+                    send("Wtf is " + command + "?");
+            }
+        }
+
+        private void delete(String fileName) throws IOException {
+            File file = new File("server " + fileName);
+            send(server.delete(file) ? "File " + file.getName() + " was deleted" : "No file");
+        }
+
+        private void preupload(String argument) throws IOException {
+            String fileName = argument.substring(0, argument.indexOf("|"));
+            long fileSize = Long.parseLong(argument.substring(argument.indexOf("|") + 1));
+            File file = new File("server " + fileName);
+            ResumeIndex.Entry entry = server.beginUpload(file, fileSize, address);
+            if (entry == null) {
+                sendQuiet("-1");
+                send("File exists");
+                return;
+            }
+            receive(entry, entry.getConfirmedOffset(), entry.getSize(), false);
+        }
+
+        private void receive(ResumeIndex.Entry entry, long offset, long end, boolean range) throws IOException {
+            this.entry = entry;
+            this.range = range;
+            this.offset = offset;
+            fileSize = end;
+            initOffset = offset;
+            startTime = new Date();
+            started = System.nanoTime();
+            if (!range && offset > 0) server.metrics.resumed();
+            progress = range ? null : new TransferMetrics.Progress(address + " >>> " + entry.getFile().getName(), end);
+            fileChannel = FileChannel.open(Paths.get(entry.getFile().getPath()), StandardOpenOption.WRITE);
+            sparse = entry.isFresh();
+            state = State.UPLOAD;
+            sendQuiet(String.valueOf(offset));
+            if (offset >= fileSize) finishUpload();
+        }
+
+        private void receive() throws IOException {
+            int count = (int) Math.min(input.remaining(), fileSize - offset);
+            ByteBuffer data = input.duplicate();
+            data.limit(data.position() + count);
+            input.position(data.limit());
+            writeStarted = System.nanoTime();
+            if (sparse && WritePipeline.isZero(data)) {
+                received(count);
+                return;
+            }
+            pending.clear();
+            pending.put(data);
+            pending.flip();
+            writing = true;
+            updateInterest();
+            FileChannel target = fileChannel;
+            long position = offset;
+            server.disk.execute(() -> {
+                try {
+                    long written = position;
+                    while (pending.hasRemaining()) written += target.write(pending, written);
+                } catch (IOException e) {
+                    writeFailure = e;
+                }
+                loop.complete(this);
+            });
+        }
+
+        public void written() throws IOException {
+            if (closed) return;
+            writing = false;
+            if (writeFailure != null) throw writeFailure;
+            received(pending.limit());
+            write();
+        }
+
+        private void received(int count) throws IOException {
+            server.metrics.received(count, System.nanoTime() - writeStarted);
+            bytesIn += count;
+            server.resumeIndex.confirm(entry, offset, count);
+            offset += count;
+            if (progress != null) progress.update(offset);
+            if (offset >= fileSize) finishUpload();
+            if (throttle(count)) updateInterest();
+        }
+
+        private void finishUpload() throws IOException {
+            fileChannel.close();
+            fileChannel = null;
+            state = State.COMMAND;
+            server.resumeIndex.checkpointLater(entry);
+            server.metrics.transferCompleted(fileSize - initOffset, System.nanoTime() - started);
+            String name = entry.getFile().getName();
+            if (range) {
+                send("Range " + initOffset + "-" + fileSize + " stored");
+                if (entry.isComplete() && server.resumeIndex.remove(entry))
+                    ConsoleLog.println("File " + name + " was successfully uploaded");
+                return;
+            }
+            server.resumeIndex.remove(entry);
+            double timeInSecs = (double)(new Date().getTime() - startTime.getTime()) / 1000D;
+            double mBits = (double)((fileSize - initOffset) * 8) / 1000000D;
+            double speed = timeInSecs == 0 ? Double.MAX_VALUE : mBits / timeInSecs;
+            send("File " + name + " was successfully uploaded. Total speed: " + speed + " Mbits");
+        }
+
         private void download(String filename) throws IOException {
             File file = new File(filename);
-            if (!file.exists()) {
+            if (!file.exists() || server.isUploading(file)) {
                 send("No file");
                 return;
             }
-            send("File was found|" + file.length());
-            BufferedReader inputReader = new BufferedReader(new InputStreamReader(input));
-            RandomAccessFile fileReader = new RandomAccessFile(file, "r");
-            String lineFromClient = inputReader.readLine();
-            if (lineFromClient == null) throw new IOException();
-            long uploadedBytes = Long.parseLong(lineFromClient);
-            while (true) {
-                fileReader.seek(uploadedBytes);
-                byte[] bytes = new byte[BUFFER_SIZE];
-                int countBytes = fileReader.read(bytes);
-                if (countBytes <= 0) break;
-                send(bytes, countBytes);
-                uploadedBytes += countBytes;
-                System.out.println(connection.getRemoteSocketAddress() + " <<< byte[" + countBytes + "]");
+            this.file = file;
+            open(file);
+            state = State.DOWNLOAD_OFFSET;
+            send("File was found|" + fileSize);
+        }
+
+        private void fetch(String argument) throws IOException {
+            String[] parts = argument.split("\\|");
+            File file = new File(parts[0]);
+            if (!file.exists() || server.isUploading(file)) {
+                send("No file");
+                return;
             }
+            this.file = file;
+            open(file);
+            long length = fileSize;
+            fileSize = Math.min(Long.parseLong(parts[2]), length);
+            send("File was found|" + length);
+            startDownload(Math.min(Long.parseLong(parts[1]), fileSize));
         }
 
-        private void send(String data) throws IOException {
-            data += "\r\n";
-            output.write(data.getBytes());
-            output.flush();
-            System.out.print(connection.getRemoteSocketAddress() + " <<< " + data);
+        private void probe(String argument) throws IOException {
+            long count = Math.min(Long.parseLong(argument), MAX_PROBE_SIZE);
+            send("Probe|" + count);
+            cached = PROBE_BLOCK.duplicate();
+            fileSize = count;
+            startDownload(0);
+        }
+
+        private void bulk(String argument) throws IOException {
+            bulk.addAll(server.listFiles(argument));
+            bulkFiles = bulk.size();
+            if (bulkFiles == 0) {
+                send("No file");
+                return;
+            }
+            nextBulkFile();
+            write();
+        }
+
+        private void nextBulkFile() throws IOException {
+            File next = bulk.poll();
+            if (next == null) {
+                queue("Bulk done|" + bulkFiles);
+                ConsoleLog.println(address + " <<< Bulk done|" + bulkFiles);
+                bulkFiles = 0;
+                return;
+            }
+            file = next;
+            open(next);
+            offset = 0;
+            initOffset = 0;
+            started = System.nanoTime();
+            queue("Bulk file|" + fileSize + "|" + next.getName());
+            state = State.DOWNLOAD;
+        }
+
+        private void ranges(String argument) throws IOException {
+            String fileName = argument.substring(0, argument.lastIndexOf("|"));
+            long fileSize = Long.parseLong(argument.substring(argument.lastIndexOf("|") + 1));
+            File file = new File("server " + fileName);
+            ResumeIndex.Entry entry = server.beginUpload(file, fileSize, address);
+            if (entry == null) {
+                send("File exists");
+                return;
+            }
+            send(entry.getDone().missing(fileSize).toString());
+            if (entry.isComplete()) server.resumeIndex.remove(entry);
         }
 
-        private void send(byte[] data, int count) throws IOException {
-            output.write(data, 0, count);
-            output.flush();
+        private void store(String argument) throws IOException {
+            String[] parts = argument.split("\\|");
+            File file = new File("server " + parts[0]);
+            long fileSize = Long.parseLong(parts[1]);
+            long start = Long.parseLong(parts[2]);
+            long end = Long.parseLong(parts[3]);
+            ResumeIndex.Entry entry = server.resumeIndex.get(file);
+            if (entry == null || entry.getSize() != fileSize || start < 0 || start > end || end > fileSize
+                    || !entry.getOwner().equals(ipOf(address))) {
+                sendQuiet("-1");
+                send("Unknown upload");
+                return;
+            }
+            receive(entry, start, end, true);
+        }
+
+        private void open(File file) throws IOException {
+            cached = server.cache.get(file, server.disk);
+            if (cached != null) {
+                fileSize = cached.capacity();
+                return;
+            }
+            fileChannel = FileChannel.open(Paths.get(file.getPath()), StandardOpenOption.READ);
+            fileSize = fileChannel.size();
+        }
+
+        private void startDownload(long offset) throws IOException {
+            this.offset = offset;
+            initOffset = offset;
+            started = System.nanoTime();
+            if (state == State.DOWNLOAD_OFFSET && offset > 0) server.metrics.resumed();
+            state = State.DOWNLOAD;
+            write();
+        }
+
+        private void transfer() throws IOException {
+            long budget = (long) MAX_CHUNKS_PER_WRITE * server.bufferSize;
+            while (budget > 0) {
+                long remaining = fileSize - offset;
+                if (remaining <= 0) {
+                    finishDownload();
+                    if (state != State.DOWNLOAD || !flush()) return;
+                    budget -= server.bufferSize;
+                    continue;
+                }
+                long count;
+                if (cached != null) {
+                    int position = (int) (offset % cached.capacity());
+                    cached.limit((int) Math.min(cached.capacity(), position + Math.min(remaining, budget)));
+                    cached.position(position);
+                    count = channel.write(cached);
+                } else {
+                    count = fileChannel.transferTo(offset, Math.min(remaining, budget), channel);
+                    if (count == 0 && offset >= fileChannel.size()) throw new EOFException("File was truncated");
+                }
+                if (count == 0) return;
+                offset += count;
+                budget -= count;
+                bytesOut += count;
+                server.metrics.sent(count);
+                if (throttle(count)) return;
+            }
+        }
+
+        private void finishDownload() throws IOException {
+            ConsoleLog.println(address + " <<< byte[" + (offset - initOffset) + "]");
+            if (offset > initOffset) server.metrics.transferCompleted(offset - initOffset, System.nanoTime() - started);
+            if (fileChannel != null) fileChannel.close();
+            fileChannel = null;
+            cached = null;
+            state = State.COMMAND;
+            if (bulkFiles > 0) nextBulkFile();
+        }
+
+        private void send(String data) throws IOException {
+            sendQuiet(data);
+            ConsoleLog.println(address + " <<< " + data);
         }
 
         private void sendQuiet(String data) throws IOException {
-            data += "\r\n";
-            output.write(data.getBytes());
-            output.flush();
+            queue(data);
+            write();
         }
 
-        private void disconnect() {
-            //server.connections.remove(this);
-            isWorked = false;
-            System.out.println(connection.getRemoteSocketAddress() + " disconnected");
+        private void queue(String data) {
+            ByteBuffer buffer = ByteBuffer.wrap((data + "\r\n").getBytes());
+            queuedBytes += buffer.capacity();
+            output.add(buffer);
+        }
+
+        private void updateInterest() {
+            if (closed) return;
+            int ops = paused() ? 0 : SelectionKey.OP_READ;
+            if (!output.isEmpty() || (state == State.DOWNLOAD && resumeAt == 0)) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (fileChannel != null) try {
+                fileChannel.close();
+            } catch (IOException ignored) {
+            }
+            if (state == State.UPLOAD) {
+                server.resumeIndex.interrupt(entry);
+                server.resumeIndex.checkpointLater(entry);
+            }
+            server.connectionPermits.release();
+            if (address == null) return;
+            server.metrics.sessionClosed();
+            ConsoleLog.println(address + " disconnected (in " + bytesIn + " bytes, out " + bytesOut + " bytes)");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,325 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TransferClient implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECTIONS = 4;
+    private static final int WRITE_QUEUE_DEPTH = 8;
+    private static final int TIMEOUT_SECONDS = 60;
+    private static final String RESUME_JOURNAL = "client.resume";
+    private static final AtomicBoolean TEXT_FALLBACK_REPORTED = new AtomicBoolean();
+
+    private final SocketAddress address;
+    private final Config config;
+    private final int bufferSize;
+    private final int connections;
+    private final boolean binary;
+    private final boolean compressing;
+    private final ResumeIndex resumeIndex;
+    private final ExecutorService executor;
+    private final Queue<FrameChannel> idle = new ConcurrentLinkedQueue<>();
+    private final Set<FrameChannel> opened = ConcurrentHashMap.newKeySet();
+
+    public interface ProgressListener {
+        void progress(long done, long total);
+    }
+
+    public interface Operation<T> {
+        T run(FrameChannel frames) throws IOException;
+    }
+
+    static class TransferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TransferException(String message) {
+            super(message);
+        }
+    }
+
+    public TransferClient(SocketAddress address, Config config) {
+        this(address, config, config.getInt("connections", CONNECTIONS), config.getBoolean("binary", false),
+                config.getBoolean("compress", false), ResumeIndex.open(new File(RESUME_JOURNAL)));
+    }
+
+    TransferClient(SocketAddress address, Config config, int connections, boolean binary, boolean compressing,
+                   ResumeIndex resumeIndex) {
+        if (connections < 1) throw new IllegalArgumentException("Bad connection count " + connections);
+        this.address = address;
+        this.config = config;
+        this.connections = connections;
+        this.binary = binary;
+        this.compressing = compressing;
+        this.resumeIndex = resumeIndex;
+        bufferSize = config.getInt("bufferSize", BUFFER_SIZE);
+        executor = Executors.newFixedThreadPool(connections);
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    public CompletableFuture<String> echo(String text) {
+        return submit(frames -> command(frames, "echo " + text));
+    }
+
+    public CompletableFuture<String> time() {
+        return submit(frames -> command(frames, "time"));
+    }
+
+    public CompletableFuture<String> upload(File file, String name, ProgressListener listener) {
+        return submit(frames -> upload(frames, file, name, false, bufferSize, listener));
+    }
+
+    public CompletableFuture<File> download(String name, File file, ProgressListener listener) {
+        return submit(frames -> {
+            if (file.exists() && resumeIndex.get(file) == null) throw new TransferException("File already exists");
+            long fileSize = found(command(frames, "download " + name));
+            ResumeIndex.Entry entry = beginDownload(resumeIndex, file, fileSize, ownerOf(address));
+            long offset = entry.getConfirmedOffset();
+            frames.writeNumber(offset);
+            if (!receive(frames, resumeIndex, entry, offset, false, bufferSize, listener))
+                throw new TransferException("File has changed, " + entry.getDone().missing(fileSize).total()
+                        + " bytes are left");
+            return file;
+        });
+    }
+
+    public <T> CompletableFuture<T> submit(Operation<T> operation) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                FrameChannel frames = null;
+                boolean reusable = false;
+                try {
+                    frames = acquire();
+                    T result = operation.run(frames);
+                    reusable = true;
+                    return result;
+                } catch (TransferException e) {
+                    reusable = true;
+                    throw new CompletionException(e);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    if (frames != null) release(frames, reusable);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Client is closed"));
+            return failed;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        FrameChannel frames;
+        while ((frames = idle.poll()) != null) release(frames, false);
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (FrameChannel open : opened) closeQuietly(open);
+    }
+
+    private FrameChannel acquire() throws IOException {
+        FrameChannel frames = idle.poll();
+        if (frames != null) return frames;
+        frames = connect(address, config, bufferSize, binary, compressing);
+        opened.add(frames);
+        return frames;
+    }
+
+    private void release(FrameChannel frames, boolean reusable) {
+        if (reusable && !executor.isShutdown()) {
+            idle.add(frames);
+            return;
+        }
+        opened.remove(frames);
+        closeQuietly(frames);
+    }
+
+    private static void closeQuietly(FrameChannel frames) {
+        try {
+            frames.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static Socket open(SocketAddress address, Config config) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            config.configure(channel.socket());
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    private static Socket openWithTimeout(SocketAddress address, Config config) throws IOException {
+        int timeout = config.getInt("timeout", TIMEOUT_SECONDS) * 1000;
+        if (timeout <= 0) return open(address, config);
+        Socket socket = new Socket();
+        try {
+            config.configure(socket);
+            socket.setSoTimeout(timeout);
+            socket.connect(address, timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    static FrameChannel connect(SocketAddress address, Config config, int bufferSize, boolean binary,
+                                boolean compressing) throws IOException {
+        FrameChannel frames = new FrameChannel(openWithTimeout(address, config), bufferSize);
+        try {
+            if (frames.readMessage() == null) throw new EOFException();
+            if (binary) {
+                frames.writeMessage(FrameChannel.COMMAND, FrameChannel.BINARY_PROTOCOL);
+                String reply = frames.readMessage();
+                if (reply == null) throw new EOFException();
+                if (!FrameChannel.BINARY_PROTOCOL.equals(reply)) {
+                    if (TEXT_FALLBACK_REPORTED.compareAndSet(false, true))
+                        ConsoleLog.println("Server does not support the binary protocol, staying on text: " + reply);
+                    return frames;
+                }
+                frames.setBinary(true);
+                if (compressing) {
+                    frames.writeMessage(FrameChannel.COMMAND, "compress " + FrameChannel.DEFLATE);
+                    if (frames.readMessage() == null) throw new EOFException();
+                    frames.setCompressing(true);
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly(frames);
+            throw e;
+        }
+        return frames;
+    }
+
+    static String ownerOf(SocketAddress address) {
+        if (!(address instanceof InetSocketAddress)) return address.toString();
+        InetSocketAddress inet = (InetSocketAddress) address;
+        if (inet.isUnresolved()) return address.toString();
+        return "/" + inet.getAddress().getHostAddress() + ":" + inet.getPort();
+    }
+
+    static String command(FrameChannel frames, String command) throws IOException {
+        frames.writeMessage(FrameChannel.COMMAND, command);
+        return reply(frames);
+    }
+
+    static String reply(FrameChannel frames) throws IOException {
+        String line = frames.readMessage();
+        if (line == null) throw new EOFException();
+        return line;
+    }
+
+    static long found(String reply) throws IOException {
+        if (!reply.startsWith("File was found|")) throw new TransferException(reply);
+        return Long.parseLong(reply.substring(reply.indexOf("|") + 1).trim());
+    }
+
+    static String upload(FrameChannel frames, File file, String name, boolean mapped, int bufferSize,
+                         ProgressListener listener) throws IOException {
+        if (!file.exists()) throw new TransferException("No file");
+        long fileSize = file.length();
+        frames.writeMessage(FrameChannel.COMMAND, "upload " + name + "|" + fileSize);
+        long uploadedBytes = frames.readNumber();
+        if (uploadedBytes == -1) throw new TransferException(reply(frames));
+        try (FileChannel fileReader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (mapped) {
+                MappedFile.send(fileReader, uploadedBytes, fileSize - uploadedBytes, bufferSize, frames, listener);
+            } else {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(bufferSize);
+                while (uploadedBytes < fileSize) {
+                    bytes.clear();
+                    if (fileSize - uploadedBytes < bufferSize) bytes.limit((int) (fileSize - uploadedBytes));
+                    int countBytes = fileReader.read(bytes, uploadedBytes);
+                    if (countBytes <= 0) throw new EOFException("File was truncated");
+                    bytes.flip();
+                    frames.writeData(bytes);
+                    uploadedBytes += countBytes;
+                    if (listener != null) listener.progress(uploadedBytes, fileSize);
+                }
+            }
+            frames.endData();
+        }
+        return reply(frames);
+    }
+
+    static ResumeIndex.Entry beginDownload(ResumeIndex resumeIndex, File file, long fileSize, String owner)
+            throws IOException {
+        synchronized (resumeIndex) {
+            ResumeIndex.Entry entry = resumeIndex.get(file);
+            if (entry != null && (!entry.getOwner().equals(owner) || entry.getSize() != fileSize || !file.exists())) {
+                resumeIndex.remove(entry);
+                file.delete();
+                entry = null;
+            }
+            if (entry == null) {
+                entry = resumeIndex.begin(file, owner, fileSize);
+            }
+            return entry;
+        }
+    }
+
+    static boolean receive(FrameChannel frames, ResumeIndex resumeIndex, ResumeIndex.Entry entry, long offset,
+                           boolean mapped, int bufferSize, ProgressListener listener) throws IOException {
+        long fileSize = entry.getSize();
+        FileSink.Listener confirm = (position, count) -> resumeIndex.confirm(entry, position, count);
+        try (FileSink pipeline = mapped ? new MappedFile(entry.getFile(), fileSize, bufferSize, confirm)
+                : new WritePipeline(entry.getFile(), WRITE_QUEUE_DEPTH, bufferSize, confirm, entry.isFresh())) {
+            while (offset < fileSize) {
+                int count = pipeline.receive(frames, offset, fileSize - offset);
+                if (count == -1) throw new EOFException();
+                offset += count;
+                if (listener != null) listener.progress(offset, fileSize);
+            }
+            frames.finishData();
+            pipeline.await();
+        } catch (IOException | RuntimeException e) {
+            resumeIndex.interrupt(entry);
+            throw e;
+        } finally {
+            resumeIndex.checkpoint(entry);
+        }
+        if (!entry.isComplete()) return false;
+        resumeIndex.remove(entry);
+        return true;
+    }
+}
@@ -0,0 +1,309 @@
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+class TransferMetrics implements TransferMetricsMXBean {
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder totalSessions = new LongAdder();
+    private final LongAdder resumedTransfers = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder cachedBytes = new LongAdder();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final Histogram chunkLatency = new Histogram();
+    private final Histogram transferSpeed = new Histogram();
+    private ScheduledExecutorService reporter;
+    private ObjectName name;
+    private long reportedBytes = -1;
+
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final LongAdder[] buckets = new LongAdder[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets[indexOf(value)].increment();
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double mean() {
+            long count = this.count.sum();
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long percentile(double percentile) {
+            long count = this.count.sum();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100D);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) return Math.min(max(), upperBoundOf(i));
+            }
+            return max();
+        }
+
+        public void reset() {
+            for (LongAdder bucket : buckets) bucket.reset();
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+
+        private static int indexOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBoundOf(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / SUB_BUCKETS - 1;
+            long next = (long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift;
+            return next <= 0 ? Long.MAX_VALUE : next - 1;
+        }
+    }
+
+    static class Progress implements TransferClient.ProgressListener {
+        private static final long INTERVAL_NANOS = 1000000000L;
+
+        private final String label;
+        private final long total;
+        private long nextReport;
+
+        Progress(String label, long total) {
+            this.label = label;
+            this.total = total;
+            nextReport = System.nanoTime() + INTERVAL_NANOS;
+        }
+
+        public void update(long position) {
+            long now = System.nanoTime();
+            if (now < nextReport && position < total) return;
+            nextReport = now + INTERVAL_NANOS;
+            System.out.println(label + " " + position + "/" + total + " bytes ("
+                    + (total == 0 ? 100 : position * 100 / total) + "%)");
+        }
+
+        @Override
+        public void progress(long done, long total) {
+            update(done);
+        }
+    }
+
+    public void sessionOpened() {
+        totalSessions.increment();
+        activeSessions.incrementAndGet();
+    }
+
+    public void sessionClosed() {
+        activeSessions.decrementAndGet();
+    }
+
+    public void received(int count, long latencyNanos) {
+        bytesIn.add(count);
+        chunkLatency.record(latencyNanos);
+    }
+
+    public void sent(long count) {
+        bytesOut.add(count);
+    }
+
+    public void resumed() {
+        resumedTransfers.increment();
+    }
+
+    public void transferCompleted(long bytes, long nanos) {
+        transferSpeed.record(nanos == 0 ? 0 : bytes * 8 * 1000000 / nanos);
+    }
+
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+
+    public void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    public void cacheEvicted() {
+        cacheEvictions.increment();
+    }
+
+    public void cacheResized(long delta) {
+        cachedBytes.add(delta);
+    }
+
+    public synchronized void register(String type) {
+        try {
+            name = new ObjectName("spolks:type=" + type);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            name = null;
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void close() {
+        if (reporter != null) reporter.shutdownNow();
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    public synchronized void startSummary(long periodSeconds) {
+        if (reporter != null) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private void report() {
+        long bytes = getBytesIn() + getBytesOut();
+        if (bytes == reportedBytes && activeSessions.get() == 0) return;
+        reportedBytes = bytes;
+        System.out.println(getSummary());
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getChunks() {
+        return chunkLatency.count();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    @Override
+    public long getTotalSessions() {
+        return totalSessions.sum();
+    }
+
+    @Override
+    public long getResumedTransfers() {
+        return resumedTransfers.sum();
+    }
+
+    @Override
+    public long getCompletedTransfers() {
+        return transferSpeed.count();
+    }
+
+    @Override
+    public double getChunkLatencyMeanMicros() {
+        return chunkLatency.mean() / 1000D;
+    }
+
+    @Override
+    public long getChunkLatencyP50Micros() {
+        return chunkLatency.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getChunkLatencyP99Micros() {
+        return chunkLatency.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getChunkLatencyMaxMicros() {
+        return chunkLatency.max() / 1000;
+    }
+
+    @Override
+    public double getMeanTransferSpeedMbits() {
+        return transferSpeed.mean() / 1000D;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return cachedBytes.sum();
+    }
+
+    @Override
+    public String getSummary() {
+        return String.format("sessions %d active/%d total, in %d bytes, out %d bytes, chunks %d"
+                        + " (latency p50 %d us, p99 %d us, max %d us), transfers %d (%d resumed, %.1f Mbits mean),"
+                        + " cache %d hits/%d misses/%d evictions (%d bytes)",
+                getActiveSessions(), getTotalSessions(), getBytesIn(), getBytesOut(), getChunks(),
+                getChunkLatencyP50Micros(), getChunkLatencyP99Micros(), getChunkLatencyMaxMicros(),
+                getCompletedTransfers(), getResumedTransfers(), getMeanTransferSpeedMbits(),
+                getCacheHits(), getCacheMisses(), getCacheEvictions(), getCachedBytes());
+    }
+
+    @Override
+    public String getResourceUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+        double cpu = system instanceof com.sun.management.OperatingSystemMXBean
+                ? ((com.sun.management.OperatingSystemMXBean) system).getProcessCpuLoad() : -1;
+        long openFiles = system instanceof UnixOperatingSystemMXBean
+                ? ((UnixOperatingSystemMXBean) system).getOpenFileDescriptorCount() : -1;
+        return String.format("sessions %d, cpu %.0f%%, heap %d/%d MB, threads %d, open files %d, in %d MB, out %d MB",
+                getActiveSessions(), Math.max(0, cpu) * 100, (runtime.totalMemory() - runtime.freeMemory()) >> 20,
+                runtime.maxMemory() >> 20, ManagementFactory.getThreadMXBean().getThreadCount(), openFiles,
+                getBytesIn() >> 20, getBytesOut() >> 20);
+    }
+}
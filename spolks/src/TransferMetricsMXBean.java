@@ -0,0 +1,38 @@
+public interface TransferMetricsMXBean {
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getChunks();
+
+    int getActiveSessions();
+
+    long getTotalSessions();
+
+    long getResumedTransfers();
+
+    long getCompletedTransfers();
+
+    double getChunkLatencyMeanMicros();
+
+    long getChunkLatencyP50Micros();
+
+    long getChunkLatencyP99Micros();
+
+    long getChunkLatencyMaxMicros();
+
+    double getMeanTransferSpeedMbits();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    long getCachedBytes();
+
+    String getSummary();
+
+    String getResourceUsage();
+}
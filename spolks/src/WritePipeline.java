@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+class WritePipeline implements FileSink, CompletionHandler<Integer, WritePipeline.Chunk> {
+
+    private static final int MAX_SPARE_BUFFERS = 64;
+    private static final Queue<ByteBuffer> spareBuffers = new ConcurrentLinkedQueue<>();
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024).asReadOnlyBuffer();
+
+    private final AsynchronousFileChannel fileChannel;
+    private final Listener listener;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final Queue<Chunk> idle = new ConcurrentLinkedQueue<>();
+    private final Semaphore permits;
+    private final boolean sparse;
+    private volatile Throwable failure;
+
+    static class Chunk {
+        private final ByteBuffer buffer;
+        private long start;
+        private long position;
+
+        private Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    public WritePipeline(File file, int depth, int bufferSize) throws IOException {
+        this(file, depth, bufferSize, null, false);
+    }
+
+    public WritePipeline(File file, int depth, int bufferSize, Listener listener, boolean sparse) throws IOException {
+        this.listener = listener;
+        this.sparse = sparse;
+        fileChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        for (int i = 0; i < depth; i++) {
+            ByteBuffer buffer = spareBuffers.poll();
+            if (buffer == null || buffer.capacity() != bufferSize) buffer = ByteBuffer.allocateDirect(bufferSize);
+            Chunk chunk = new Chunk(buffer);
+            chunks.add(chunk);
+            idle.add(chunk);
+        }
+        permits = new Semaphore(depth);
+    }
+
+    @Override
+    public int receive(ReadableByteChannel source, long position, long limit) throws IOException {
+        Chunk chunk = take();
+        ByteBuffer buffer = chunk.buffer;
+        buffer.clear();
+        if (limit < buffer.capacity()) buffer.limit((int) limit);
+        int count;
+        try {
+            count = source.read(buffer);
+        } catch (IOException e) {
+            release(chunk);
+            throw e;
+        }
+        if (count <= 0) {
+            release(chunk);
+            return count;
+        }
+        buffer.flip();
+        if (sparse && isZero(buffer)) {
+            if (listener != null) listener.written(position, count);
+            release(chunk);
+            return count;
+        }
+        chunk.start = position;
+        chunk.position = position;
+        fileChannel.write(buffer, position, chunk, this);
+        return count;
+    }
+
+    @Override
+    public void await() throws IOException {
+        try {
+            permits.acquire(chunks.size());
+            permits.release(chunks.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void completed(Integer count, Chunk chunk) {
+        if (chunk.buffer.hasRemaining() && failure == null) {
+            chunk.position += count;
+            fileChannel.write(chunk.buffer, chunk.position, chunk, this);
+        } else {
+            if (listener != null && failure == null) listener.written(chunk.start, chunk.buffer.limit());
+            release(chunk);
+        }
+    }
+
+    @Override
+    public void failed(Throwable exc, Chunk chunk) {
+        failure = exc;
+        release(chunk);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            permits.acquireUninterruptibly(chunks.size());
+        } finally {
+            fileChannel.close();
+            for (Chunk chunk : chunks)
+                if (spareBuffers.size() < MAX_SPARE_BUFFERS) spareBuffers.add(chunk.buffer);
+        }
+    }
+
+    private Chunk take() throws IOException {
+        checkFailure();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        Chunk chunk = idle.poll();
+        if (failure != null) {
+            release(chunk);
+            checkFailure();
+        }
+        return chunk;
+    }
+
+    private void release(Chunk chunk) {
+        idle.add(chunk);
+        permits.release();
+    }
+
+    static boolean isZero(ByteBuffer data) {
+        ByteBuffer zeros = ZEROS.duplicate();
+        ByteBuffer slice = data.duplicate();
+        for (int offset = data.position(); offset < data.limit(); offset += zeros.capacity()) {
+            slice.limit(Math.min(data.limit(), offset + zeros.capacity())).position(offset);
+            zeros.limit(slice.remaining()).position(0);
+            if (slice.mismatch(zeros) != -1) return false;
+        }
+        return true;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = this.failure;
+        if (failure == null) return;
+        if (failure instanceof IOException) throw new IOException(failure.getMessage(), failure);
+        throw new IOException(failure);
+    }
+}
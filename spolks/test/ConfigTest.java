@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConfigTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void laterSourcesWin() throws IOException {
+        Path file = Files.write(directory.resolve("test.properties"),
+                Arrays.asList("port=1000", "threads=3", "eventLoops=5"));
+        System.setProperty("spolks.threads", "4");
+        System.setProperty("spolks.eventLoops", "6");
+        try {
+            Config config = Config.parse(new String[] {"--config=" + file, "--eventLoops=7", "server"});
+            assertEquals(1000, config.getInt("port", 1337));
+            assertEquals(4, config.getInt("threads", 2));
+            assertEquals(7, config.getInt("eventLoops", 1));
+            assertEquals(1024, config.getInt("backlog", 1024));
+            assertEquals(Arrays.asList("server"), config.getArguments());
+        } finally {
+            System.clearProperty("spolks.threads");
+            System.clearProperty("spolks.eventLoops");
+        }
+    }
+
+    @Test
+    void sizesAcceptSuffixes() throws IOException {
+        Config config = Config.parse(new String[] {"--a=64k", "--b=16M", "--c=2g", "--d= 12 "});
+        assertEquals(64 * 1024, config.getInt("a", 0));
+        assertEquals(16 * 1024 * 1024, config.getInt("b", 0));
+        assertEquals(2L * 1024 * 1024 * 1024, config.getLong("c", 0));
+        assertEquals(12, config.getInt("d", 0));
+        assertThrows(IllegalArgumentException.class, () -> config.getInt("c", 0));
+    }
+
+    @Test
+    void flagsWithoutValuesAreTrue() throws IOException {
+        Config config = Config.parse(new String[] {"--binary", "--autoTune=false"});
+        assertTrue(config.getBoolean("binary", false));
+        assertFalse(config.getBoolean("autoTune", true));
+        assertTrue(config.getBoolean("tcpNoDelay", true));
+    }
+
+    @Test
+    void badValuesAreReported() throws IOException {
+        Config config = Config.parse(new String[] {"--port=http"});
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> config.getInt("port", 0));
+        assertEquals("Bad value for port: http", e.getMessage());
+        assertThrows(IOException.class, () -> Config.parse(new String[] {"--config=" + directory.resolve("none")}));
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaSyncTest {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void identicalFileIsCopied() throws Exception {
+        byte[] old = random(1024 * 1024 + 123, 1);
+        DeltaSync.Stats stats = sync(old, old);
+        assertEquals(old.length, stats.getMatched());
+        assertEquals(0, stats.getLiteral());
+        assertTrue(stats.getWire() < old.length / 100);
+    }
+
+    @Test
+    void shiftedFileReusesBlocks() throws Exception {
+        byte[] old = random(1024 * 1024, 2);
+        byte[] prefix = random(100, 3);
+        byte[] shifted = new byte[old.length + prefix.length];
+        System.arraycopy(prefix, 0, shifted, 0, prefix.length);
+        System.arraycopy(old, 0, shifted, prefix.length, old.length);
+        DeltaSync.Stats stats = sync(old, shifted);
+        assertEquals(old.length, stats.getMatched());
+        assertEquals(prefix.length, stats.getLiteral());
+    }
+
+    @Test
+    void editedFileSendsOnlyChangedBlocks() throws Exception {
+        byte[] old = random(1024 * 1024, 4);
+        byte[] edited = old.clone();
+        for (int i = 500000; i < 500010; i++) edited[i] ^= 0x5a;
+        DeltaSync.Stats stats = sync(old, edited);
+        assertTrue(stats.getLiteral() <= 2L * DeltaSync.blockSize(old.length));
+        assertEquals(edited.length, stats.getMatched() + stats.getLiteral());
+    }
+
+    @Test
+    void truncatedFileRoundTrips() throws Exception {
+        byte[] old = random(1024 * 1024, 5);
+        byte[] truncated = Arrays.copyOf(old, old.length - 777);
+        DeltaSync.Stats stats = sync(old, truncated);
+        assertEquals(truncated.length, stats.getMatched() + stats.getLiteral());
+        assertTrue(stats.getMatched() > truncated.length - 2L * DeltaSync.blockSize(old.length));
+    }
+
+    @Test
+    void grownAndEmptyFilesRoundTrip() throws Exception {
+        byte[] old = random(50000, 6);
+        byte[] grown = Arrays.copyOf(old, old.length + 3000);
+        int blockSize = DeltaSync.blockSize(old.length);
+        assertEquals(old.length / blockSize * blockSize, sync(old, grown).getMatched());
+        DeltaSync.Stats emptied = sync(old, new byte[0]);
+        assertEquals(0, emptied.getMatched() + emptied.getLiteral());
+        assertEquals(old.length, sync(new byte[0], old).getLiteral());
+    }
+
+    private DeltaSync.Stats sync(byte[] oldBytes, byte[] newBytes) {
+        return assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+            Path oldFile = Files.write(Files.createTempFile(directory, "old", ".bin"), oldBytes);
+            Path newFile = Files.write(Files.createTempFile(directory, "new", ".bin"), newBytes);
+            Path target = Files.createTempFile(directory, "target", ".bin");
+            int blockSize = DeltaSync.blockSize(oldBytes.length);
+            int count = DeltaSync.blockCount(oldBytes.length, blockSize);
+            try (Loopback loopback = new Loopback(BUFFER_SIZE, BUFFER_SIZE, true);
+                 FileChannel old = FileChannel.open(oldFile, StandardOpenOption.READ);
+                 FileChannel source = FileChannel.open(newFile, StandardOpenOption.READ);
+                 FileChannel rebuilt = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                FrameChannel server = loopback.left;
+                FrameChannel client = loopback.right;
+                CompletableFuture<DeltaSync.Stats> applied = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        DeltaSync.writeSignatures(old, oldBytes.length, blockSize, server, BUFFER_SIZE);
+                        server.endData();
+                        DeltaSync.Stats stats = DeltaSync.applyDelta(server, old, oldBytes.length, blockSize,
+                                rebuilt, BUFFER_SIZE);
+                        server.finishData();
+                        return stats;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                DeltaSync.Signatures signatures = DeltaSync.readSignatures(client, blockSize, count, oldBytes.length);
+                client.finishData();
+                DeltaSync.Stats sent = DeltaSync.sendDelta(source, newBytes.length, signatures, client, BUFFER_SIZE);
+                client.endData();
+                DeltaSync.Stats stats = applied.join();
+                assertTrue(stats.isVerified());
+                assertEquals(sent.getMatched(), stats.getMatched());
+                assertEquals(sent.getLiteral(), stats.getLiteral());
+                assertArrayEquals(newBytes, Files.readAllBytes(target));
+                return stats;
+            }
+        });
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void filesAreAdmittedOnTheirSecondMiss() throws IOException {
+        TransferMetrics metrics = new TransferMetrics();
+        FileCache cache = new FileCache(1000, 1000, metrics);
+        File file = write("a.bin", 100, 1);
+        assertNull(cache.get(file));
+        assertBytes(file, cache.get(file));
+        assertBytes(file, cache.get(file));
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(2, metrics.getCacheMisses());
+        assertEquals(100, metrics.getCachedBytes());
+    }
+
+    @Test
+    void leastRecentlyUsedFilesAreEvicted() throws IOException {
+        TransferMetrics metrics = new TransferMetrics();
+        FileCache cache = new FileCache(250, 250, metrics);
+        File a = load(cache, write("a.bin", 100, 1));
+        File b = load(cache, write("b.bin", 100, 2));
+        assertNotNull(cache.get(a));
+        load(cache, write("c.bin", 100, 3));
+        assertEquals(1, metrics.getCacheEvictions());
+        assertEquals(200, metrics.getCachedBytes());
+        long misses = metrics.getCacheMisses();
+        assertNotNull(cache.get(a));
+        assertEquals(misses, metrics.getCacheMisses());
+        cache.get(b);
+        assertEquals(misses + 1, metrics.getCacheMisses());
+    }
+
+    @Test
+    void changedFilesAreReloaded() throws IOException {
+        FileCache cache = new FileCache(1000, 1000, new TransferMetrics());
+        File file = load(cache, write("a.bin", 100, 1));
+        long lastModified = file.lastModified();
+        write("a.bin", 100, 2);
+        assertTrue(file.setLastModified(lastModified + 2000));
+        assertBytes(file, cache.get(file));
+    }
+
+    @Test
+    void largeFilesAreNotCached() throws IOException {
+        TransferMetrics metrics = new TransferMetrics();
+        FileCache cache = new FileCache(1000, 50, metrics);
+        File file = write("a.bin", 100, 1);
+        assertNull(cache.get(file));
+        assertNull(cache.get(file));
+        assertEquals(0, metrics.getCacheMisses());
+    }
+
+    @Test
+    void loaderFillsTheCacheOffTheCaller() throws IOException {
+        FileCache cache = new FileCache(1000, 1000, new TransferMetrics());
+        File file = write("a.bin", 100, 1);
+        assertNull(cache.get(file, Runnable::run));
+        assertNull(cache.get(file, Runnable::run));
+        assertBytes(file, cache.get(file, command -> {
+            throw new AssertionError("A cached file was loaded again");
+        }));
+    }
+
+    private File write(String name, int size, int seed) throws IOException {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) bytes[i] = (byte) (i * seed);
+        return Files.write(directory.resolve(name), bytes).toFile();
+    }
+
+    private static File load(FileCache cache, File file) throws IOException {
+        cache.get(file);
+        assertNotNull(cache.get(file));
+        return file;
+    }
+
+    private static void assertBytes(File file, ByteBuffer content) throws IOException {
+        assertNotNull(content);
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        assertArrayEquals(Files.readAllBytes(file.toPath()), bytes);
+    }
+}
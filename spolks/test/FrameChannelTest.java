@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class FrameChannelTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Test
+    void emptyMessagesRoundTrip() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            for (boolean binary : new boolean[]{false, true}) {
+                try (Loopback loopback = new Loopback(1024, 1024, binary)) {
+                    loopback.left.writeMessage(FrameChannel.COMMAND, "");
+                    loopback.left.writeMessage(FrameChannel.ACK, "after");
+                    assertEquals("", loopback.right.readMessage());
+                    assertEquals("after", loopback.right.readMessage());
+                }
+            }
+        });
+    }
+
+    @Test
+    void numbersAndMessagesRoundTrip() throws IOException {
+        try (Loopback loopback = new Loopback(1024, 1024, true)) {
+            loopback.left.writeNumber(Long.MAX_VALUE);
+            loopback.left.writeMessage(FrameChannel.COMMAND, "echo héllo");
+            assertEquals(Long.MAX_VALUE, loopback.right.readNumber());
+            assertEquals("echo héllo", loopback.right.readMessage());
+            assertEquals(FrameChannel.COMMAND, loopback.right.type());
+        }
+    }
+
+    @Test
+    void dataFramesLargerThanTheReaderBufferArriveIntact() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            byte[] payload = random(1024 * 1024 + 17);
+            try (Loopback loopback = new Loopback(2 * 1024 * 1024, 64 * 1024, true)) {
+                CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                    try {
+                        loopback.left.writeData(ByteBuffer.wrap(payload));
+                        loopback.left.endData();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                assertArrayEquals(payload, readAll(loopback.right, payload.length, 64 * 1024));
+                loopback.right.finishData();
+                sent.join();
+            }
+        });
+    }
+
+    @Test
+    void corruptedLargeFrameReturnsNoBytes() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            byte[] payload = random(200 * 1024);
+            try (Loopback loopback = new Loopback(1024, 64 * 1024, true)) {
+                CRC32C checksum = new CRC32C();
+                checksum.update(payload);
+                ByteBuffer frame = ByteBuffer.allocate(5 + payload.length + 9);
+                frame.put(FrameChannel.DATA).putInt(payload.length).put(payload);
+                frame.put(FrameChannel.CHECKSUM).putInt(4).putInt((int) checksum.getValue() + 1);
+                frame.flip();
+                CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                    try {
+                        while (frame.hasRemaining()) loopback.rawLeft.write(frame);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+                IOException error = assertThrows(IOException.class, () -> loopback.right.read(chunk));
+                assertEquals("Chunk checksum mismatch", error.getMessage());
+                assertEquals(0, chunk.position());
+                sent.join();
+            }
+        });
+    }
+
+    @Test
+    void oversizedFramesAreRejected() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (Loopback loopback = new Loopback(1024, 1024, true)) {
+                ByteBuffer frame = ByteBuffer.allocate(5);
+                frame.put(FrameChannel.COMMAND).putInt(4096);
+                frame.flip();
+                loopback.rawLeft.write(frame);
+                IOException message = assertThrows(IOException.class, () -> loopback.right.readMessage());
+                assertEquals("Frame is too long", message.getMessage());
+            }
+            try (Loopback loopback = new Loopback(1024, 1024, true)) {
+                ByteBuffer frame = ByteBuffer.allocate(5);
+                frame.put(FrameChannel.DATA).putInt(FrameChannel.MAX_CHUNK_SIZE + 1);
+                frame.flip();
+                loopback.rawLeft.write(frame);
+                IOException data = assertThrows(IOException.class,
+                        () -> loopback.right.read(ByteBuffer.allocate(1024)));
+                assertEquals("Chunk is too long", data.getMessage());
+            }
+        });
+    }
+
+    @Test
+    void compressedDataRoundTrips() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            byte[] payload = new byte[300 * 1024];
+            for (int i = 0; i < payload.length; i++) payload[i] = (byte) (i % 7);
+            try (Loopback loopback = new Loopback(64 * 1024, 64 * 1024, true)) {
+                loopback.left.setCompressing(true);
+                CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                    try {
+                        for (int position = 0; position < payload.length; position += 64 * 1024)
+                            loopback.left.writeData(ByteBuffer.wrap(payload, position,
+                                    Math.min(64 * 1024, payload.length - position)));
+                        loopback.left.endData();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                assertArrayEquals(payload, readAll(loopback.right, payload.length, 10000));
+                loopback.right.finishData();
+                sent.join();
+            }
+        });
+    }
+
+    @Test
+    void unacknowledgedTransferFails() throws IOException {
+        try (Loopback loopback = new Loopback(1024, 1024, true)) {
+            loopback.left.writeData(ByteBuffer.wrap(random(100)));
+            loopback.left.writeMessage(FrameChannel.ACK, "done!");
+            assertEquals(100, loopback.right.read(ByteBuffer.allocate(100)));
+            assertThrows(IOException.class, () -> loopback.right.finishData());
+        }
+    }
+
+    private static byte[] readAll(FrameChannel frames, int size, int chunkSize) throws IOException {
+        ByteBuffer received = ByteBuffer.allocate(size);
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        while (received.hasRemaining()) {
+            chunk.clear();
+            if (received.remaining() < chunk.capacity()) chunk.limit(received.remaining());
+            int count = frames.read(chunk);
+            if (count == -1) throw new IOException("Stream ended at " + received.position());
+            chunk.flip();
+            received.put(chunk);
+        }
+        return received.array();
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,47 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+    @Test
+    void smallValuesAreExact() {
+        TransferMetrics.Histogram histogram = new TransferMetrics.Histogram();
+        for (int i = 0; i < 10; i++) histogram.record(i);
+        assertEquals(4, histogram.percentile(50));
+        assertEquals(9, histogram.percentile(100));
+        assertEquals(4.5, histogram.mean());
+    }
+
+    @Test
+    void percentilesStayWithinBucketPrecision() {
+        TransferMetrics.Histogram histogram = new TransferMetrics.Histogram();
+        for (long i = 1; i <= 100000; i++) histogram.record(i * 1000);
+        assertWithin(50000000, histogram.percentile(50));
+        assertWithin(99000000, histogram.percentile(99));
+        assertWithin(99900000, histogram.percentile(99.9));
+        assertEquals(100000000, histogram.percentile(100));
+        assertEquals(100000000, histogram.max());
+    }
+
+    @Test
+    void extremesAndResetAreHandled() {
+        TransferMetrics.Histogram histogram = new TransferMetrics.Histogram();
+        assertEquals(0, histogram.percentile(99));
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.percentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 16,
+                "expected " + expected + " within 1/16, got " + actual);
+    }
+}
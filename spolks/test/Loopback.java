@@ -0,0 +1,31 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+class Loopback implements Closeable {
+
+    final SocketChannel rawLeft;
+    final FrameChannel left;
+    final FrameChannel right;
+
+    Loopback(int leftBufferSize, int rightBufferSize, boolean binary) throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            rawLeft = SocketChannel.open(listener.getLocalAddress());
+            SocketChannel rawRight = listener.accept();
+            left = new FrameChannel(rawLeft.socket(), leftBufferSize);
+            right = new FrameChannel(rawRight.socket(), rightBufferSize);
+        }
+        left.setBinary(binary);
+        right.setBinary(binary);
+    }
+
+    @Override
+    public void close() throws IOException {
+        left.close();
+        right.close();
+    }
+}
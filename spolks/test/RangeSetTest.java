@@ -0,0 +1,75 @@
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangeSetTest {
+
+    @Test
+    void addMergesOverlappingAndAdjacentRanges() {
+        RangeSet set = new RangeSet();
+        set.add(10, 20);
+        set.add(30, 40);
+        set.add(20, 25);
+        set.add(35, 50);
+        set.add(5, 5);
+        assertEquals("10-25,30-50", set.toString());
+        set.add(0, 31);
+        assertEquals("0-50", set.toString());
+        assertEquals(50, set.contiguousEnd());
+        assertEquals(50, set.total());
+    }
+
+    @Test
+    void addSwallowsContainedRanges() {
+        RangeSet set = RangeSet.parse("0-10,20-30,40-50");
+        set.add(5, 45);
+        assertEquals("0-50", set.toString());
+        set.add(10, 20);
+        assertEquals("0-50", set.toString());
+    }
+
+    @Test
+    void parseRoundTrips() {
+        assertEquals("0-100,200-300", RangeSet.parse("200-300, 0-100,").toString());
+        assertEquals("", RangeSet.parse("").toString());
+    }
+
+    @Test
+    void missingListsTheGaps() {
+        RangeSet set = RangeSet.parse("10-20,30-40");
+        assertEquals("0-10,20-30,40-50", set.missing(50).toString());
+        assertEquals("0-10,20-25", set.missing(25).toString());
+        assertEquals("0-10", set.missing(10).toString());
+        assertEquals("0-50", new RangeSet().missing(50).toString());
+    }
+
+    @Test
+    void missingOfEmptyFileIsEmpty() {
+        assertEquals(0, new RangeSet().missing(0).total());
+        assertEquals(0, RangeSet.parse("0-10").missing(0).total());
+        assertTrue(new RangeSet().covers(0));
+    }
+
+    @Test
+    void coversNeedsAContiguousPrefix() {
+        RangeSet set = RangeSet.parse("0-10,20-30");
+        assertTrue(set.covers(10));
+        assertFalse(set.covers(30));
+        assertFalse(RangeSet.parse("5-30").covers(30));
+    }
+
+    @Test
+    void splitCoversEveryRange() {
+        List<long[]> parts = RangeSet.parse("0-10,20-25").split(3);
+        assertEquals(3, parts.size());
+        assertArrayEquals(new long[]{0, 5}, parts.get(0));
+        assertArrayEquals(new long[]{5, 10}, parts.get(1));
+        assertArrayEquals(new long[]{20, 25}, parts.get(2));
+        assertTrue(new RangeSet().split(4).isEmpty());
+    }
+}
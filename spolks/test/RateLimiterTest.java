@@ -0,0 +1,46 @@
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    private static final long RATE = 1024 * 1024;
+
+    @Test
+    void smallBurstsPassWithoutWaiting() {
+        RateLimiter limiter = new RateLimiter(RATE, null);
+        assertEquals(0, limiter.reserve(RATE / 100));
+        assertEquals(0, limiter.reserve(RATE / 100));
+    }
+
+    @Test
+    void reservationsAccumulate() {
+        RateLimiter limiter = new RateLimiter(RATE, null);
+        assertBetween(900, 1000, limiter.reserve(RATE));
+        assertBetween(1900, 2000, limiter.reserve(RATE));
+    }
+
+    @Test
+    void connectionsShareTheServerRate() {
+        RateLimiter server = new RateLimiter(RATE, null);
+        RateLimiter large = new RateLimiter(0, server);
+        RateLimiter small = new RateLimiter(0, server);
+        assertBetween(900, 1000, large.reserve(RATE));
+        assertBetween(100, 200, small.reserve(RATE / 8));
+    }
+
+    @Test
+    void connectionLimitAppliesUnderTheServerLimit() {
+        RateLimiter server = new RateLimiter(RATE * 10, null);
+        RateLimiter connection = new RateLimiter(RATE, server);
+        assertBetween(900, 1000, connection.reserve(RATE));
+    }
+
+    private static void assertBetween(long minMillis, long maxMillis, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        assertTrue(millis >= minMillis && millis <= maxMillis, millis + " ms");
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResumeIndexTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void restartKeepsCheckpointedRanges() throws IOException {
+        File journal = directory.resolve("test.resume").toFile();
+        File file = Files.createFile(directory.resolve("data.bin")).toFile();
+        ResumeIndex index = new ResumeIndex(journal);
+        ResumeIndex.Entry entry = index.begin(file, "10.0.0.1", 100);
+        index.confirm(entry, 0, 40);
+        index.confirm(entry, 50, 10);
+        index.checkpoint(entry);
+        index.confirm(entry, 40, 10);
+
+        ResumeIndex.Entry restored = new ResumeIndex(journal).get(file);
+        assertNotNull(restored);
+        assertEquals("0-40,50-60", restored.getDone().toString());
+        assertEquals(40, restored.getConfirmedOffset());
+        assertEquals(100, restored.getSize());
+        assertEquals("10.0.0.1", restored.getOwner());
+    }
+
+    @Test
+    void removedAndMissingFilesAreForgotten() throws IOException {
+        File journal = directory.resolve("test.resume").toFile();
+        File kept = Files.createFile(directory.resolve("kept.bin")).toFile();
+        File removed = Files.createFile(directory.resolve("removed.bin")).toFile();
+        File deleted = Files.createFile(directory.resolve("deleted.bin")).toFile();
+        ResumeIndex index = new ResumeIndex(journal);
+        index.begin(kept, "a", 10);
+        assertTrue(index.remove(index.begin(removed, "a", 10)));
+        index.begin(deleted, "a", 10);
+        assertTrue(deleted.delete());
+
+        ResumeIndex restored = new ResumeIndex(journal);
+        assertNotNull(restored.get(kept));
+        assertNull(restored.get(removed));
+        assertNull(restored.get(deleted));
+    }
+
+    @Test
+    void entriesAreKeyedByCanonicalPath() throws IOException {
+        Files.createDirectory(directory.resolve("sub"));
+        File file = Files.createFile(directory.resolve("data.bin")).toFile();
+        ResumeIndex index = new ResumeIndex(directory.resolve("test.resume").toFile());
+        ResumeIndex.Entry entry = index.begin(file, "a", 10);
+        assertSame(entry, index.get(new File(directory.toFile(), "sub/../data.bin")));
+        assertNull(index.get(new File(directory.toFile(), "sub/data.bin")));
+    }
+
+    @Test
+    void journalIsCompacted() throws IOException {
+        File journal = directory.resolve("test.resume").toFile();
+        File file = Files.createFile(directory.resolve("data.bin")).toFile();
+        ResumeIndex index = new ResumeIndex(journal);
+        ResumeIndex.Entry entry = index.begin(file, "a", 10000);
+        for (int i = 0; i < 5000; i++) {
+            index.confirm(entry, i, 1);
+            index.checkpoint(entry);
+        }
+        assertTrue(Files.readAllLines(journal.toPath()).size() <= 4096);
+
+        ResumeIndex restored = new ResumeIndex(journal);
+        assertEquals(2, Files.readAllLines(journal.toPath()).size());
+        assertEquals(5000, restored.get(file).getConfirmedOffset());
+    }
+
+    @Test
+    void newEntriesArePresizedAndFresh() throws IOException {
+        File file = directory.resolve("data.bin").toFile();
+        ResumeIndex index = new ResumeIndex(directory.resolve("test.resume").toFile());
+        ResumeIndex.Entry entry = index.begin(file, "a", 12345);
+        assertEquals(12345, file.length());
+        assertTrue(entry.isFresh());
+        index.confirm(entry, 0, 100);
+        index.checkpoint(entry);
+        assertTrue(entry.isFresh());
+        index.interrupt(entry);
+        assertFalse(entry.isFresh());
+        assertFalse(new ResumeIndex(directory.resolve("test.resume").toFile()).get(file).isFresh());
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferClientTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    Path directory;
+
+    private FakeServer server;
+
+    @AfterEach
+    void stopServer() throws IOException {
+        if (server != null) server.close();
+    }
+
+    @Test
+    void operationsShareThePool() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            server = new FakeServer((line, in, out) -> reply(out, line.substring("echo ".length())));
+            List<CompletableFuture<String>> replies = new ArrayList<>();
+            try (TransferClient client = newClient(2, false, "")) {
+                for (int i = 0; i < 20; i++) replies.add(client.echo("hello " + i));
+                for (int i = 0; i < 20; i++) assertEquals("hello " + i, replies.get(i).join());
+            }
+            assertTrue(server.accepted.get() <= 2, server.accepted + " connections");
+        });
+    }
+
+    @Test
+    void refusedBinaryProtocolFallsBackToText() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            server = new FakeServer((line, in, out) -> {
+                if (line.startsWith("protocol")) reply(out, "Text only");
+                else reply(out, "text " + line);
+            });
+            try (TransferClient client = newClient(1, true, "")) {
+                assertEquals("text echo a", client.echo("a").join());
+            }
+        });
+    }
+
+    @Test
+    void downloadResumesFromTheJournal() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            byte[] data = new byte[300001];
+            new Random(1).nextBytes(data);
+            AtomicInteger drops = new AtomicInteger(1);
+            AtomicInteger resumedAt = new AtomicInteger();
+            server = new FakeServer((line, in, out) -> {
+                reply(out, "File was found|" + data.length);
+                int offset = Integer.parseInt(in.readLine().trim());
+                resumedAt.set(offset);
+                if (drops.getAndDecrement() > 0) {
+                    out.write(data, offset, 1000);
+                    out.flush();
+                    throw new IOException("Dropped");
+                }
+                out.write(data, offset, data.length - offset);
+                out.flush();
+            });
+            File file = directory.resolve("big.bin").toFile();
+            try (TransferClient client = newClient(1, false, "")) {
+                ExecutionException e = assertThrows(ExecutionException.class,
+                        () -> client.download("big.bin", file, null).get());
+                assertTrue(e.getCause() instanceof IOException, e.getCause().toString());
+                assertEquals(file, client.download("big.bin", file, null).join());
+            }
+            assertEquals(1000, resumedAt.get());
+            assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        });
+    }
+
+    @Test
+    void silentServerTimesOut() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            server = new FakeServer((line, in, out) -> {
+            });
+            try (TransferClient client = newClient(1, false, "--timeout=1")) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> client.echo("a").get());
+                assertTrue(e.getCause() instanceof IOException, e.getCause().toString());
+            }
+        });
+    }
+
+    @Test
+    void closeLetsRunningOperationsFinish() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            server = new FakeServer((line, in, out) -> {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                reply(out, "late");
+            });
+            TransferClient client = newClient(1, false, "");
+            CompletableFuture<String> reply = client.echo("a");
+            client.close();
+            assertEquals("late", reply.join());
+            ExecutionException e = assertThrows(ExecutionException.class, () -> client.echo("b").get());
+            assertEquals("Client is closed", e.getCause().getMessage());
+        });
+    }
+
+    private TransferClient newClient(int connections, boolean binary, String options) throws IOException {
+        Config config = Config.parse(options.isEmpty() ? new String[0] : options.split(" "));
+        ResumeIndex resumeIndex = new ResumeIndex(directory.resolve("client.resume").toFile());
+        return new TransferClient(server.address(), config, connections, binary, false, resumeIndex);
+    }
+
+    private static void reply(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private interface Handler {
+        void handle(String line, BufferedReader in, OutputStream out) throws IOException;
+    }
+
+    private static class FakeServer implements AutoCloseable {
+        private final ServerSocket socket = new ServerSocket(0);
+        private final List<Socket> connections = new ArrayList<>();
+        private final AtomicInteger accepted = new AtomicInteger();
+        private final Handler handler;
+
+        FakeServer(Handler handler) throws IOException {
+            this.handler = handler;
+            Thread thread = new Thread(this::accept, "fake-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket connection = socket.accept();
+                    accepted.incrementAndGet();
+                    synchronized (connections) {
+                        connections.add(connection);
+                    }
+                    Thread thread = new Thread(() -> serve(connection), "fake-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void serve(Socket connection) {
+            try (Socket ignored = connection) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(connection.getInputStream(), StandardCharsets.ISO_8859_1));
+                OutputStream out = connection.getOutputStream();
+                reply(out, "Connected to fake server");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (Arrays.asList("close", "").contains(line)) return;
+                    handler.handle(line, in, out);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            synchronized (connections) {
+                for (Socket connection : connections) connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class WritePipelineTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void chunksLandAtTheirPositions() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            byte[] data = random(1024 * 1024 + 321);
+            File file = Files.createFile(directory.resolve("out.bin")).toFile();
+            ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(data));
+            try (WritePipeline pipeline = new WritePipeline(file, 2, 4096)) {
+                long position = 0;
+                while (position < data.length) {
+                    int count = pipeline.receive(source, position, data.length - position);
+                    if (count == -1) break;
+                    position += count;
+                }
+                pipeline.await();
+                assertEquals(data.length, position);
+            }
+            assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        });
+    }
+
+    @Test
+    void limitStopsShortOfTheBuffer() throws IOException {
+        byte[] data = random(1000);
+        File file = Files.createFile(directory.resolve("short.bin")).toFile();
+        try (WritePipeline pipeline = new WritePipeline(file, 4, 4096)) {
+            ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(data));
+            assertEquals(300, pipeline.receive(source, 0, 300));
+            pipeline.await();
+        }
+        assertEquals(300, file.length());
+    }
+
+    @Test
+    void failedReadReleasesItsChunk() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            File file = Files.createFile(directory.resolve("failed.bin")).toFile();
+            ReadableByteChannel broken = new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer destination) throws IOException {
+                    throw new IOException("Connection reset");
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            try (WritePipeline pipeline = new WritePipeline(file, 1, 4096)) {
+                for (int i = 0; i < 3; i++) assertThrows(IOException.class, () -> pipeline.receive(broken, 0, 100));
+                ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(random(100)));
+                assertEquals(100, pipeline.receive(source, 0, 100));
+                pipeline.await();
+            }
+        });
+    }
+
+    @Test
+    void zeroChunksAreSkippedOnFreshFiles() throws IOException {
+        byte[] old = random(10000);
+        File file = Files.write(directory.resolve("fresh.bin"), old).toFile();
+        byte[] data = new byte[10000];
+        System.arraycopy(random(100), 0, data, 5000, 100);
+        long[] confirmed = new long[1];
+        try (WritePipeline pipeline = new WritePipeline(file, 2, 4096,
+                (position, count) -> confirmed[0] += count, true)) {
+            ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(data));
+            long position = 0;
+            while (position < data.length) position += pipeline.receive(source, position, data.length - position);
+            pipeline.await();
+        }
+        assertEquals(data.length, confirmed[0]);
+        byte[] written = Files.readAllBytes(file.toPath());
+        assertArrayEquals(Arrays.copyOfRange(old, 0, 4096), Arrays.copyOfRange(written, 0, 4096));
+        assertArrayEquals(Arrays.copyOfRange(data, 4096, 8192), Arrays.copyOfRange(written, 4096, 8192));
+        assertArrayEquals(Arrays.copyOfRange(old, 8192, 10000), Arrays.copyOfRange(written, 8192, 10000));
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}